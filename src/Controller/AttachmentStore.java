@@ -0,0 +1,374 @@
+package Controller;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores images and other attachments as files named by the SHA-256 of their content
+ * The database only keeps the hash, identical content is stored once and counted in the attachments table,
+ * the file is deleted when the last reference is released
+ * Large files are read by mapping them into memory, small ones with a single channel read
+ */
+public class AttachmentStore {
+    private static final Logger logger = Logger.getLogger(AttachmentStore.class.getName());
+    private static final String ADD_REFERENCE = "INSERT INTO attachments (hash, size, refcount) VALUES (?, ?, 1) ON CONFLICT (hash) DO UPDATE SET refcount = attachments.refcount + 1";
+    private static final String REMOVE_REFERENCE = "UPDATE attachments SET refcount = refcount - 1 WHERE hash = ? RETURNING refcount";
+    private static final String DELETE_UNREFERENCED = "DELETE FROM attachments WHERE hash = ? AND refcount <= 0";
+    private static final long MAP_THRESHOLD = 64 * 1024; //smaller files are cheaper to read than to map
+    private static final int LOCK_STRIPES = 64;
+
+    private final Path root;
+    private final Path incoming;
+    private final ConnectionPool pool;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES]; //adding and removing the same hash is serialized
+    private final LongAdder storedCount = new LongAdder();
+    private final LongAdder deduplicatedCount = new LongAdder();
+
+    /**
+     * @param root directory the attachments are stored in
+     * @param pool pool used to count the references
+     * @throws IOException if the directory cannot be created
+     */
+    public AttachmentStore(Path root, ConnectionPool pool) throws IOException {
+        this.root = root;
+        this.incoming = root.resolve("incoming");
+        this.pool = pool;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        Files.createDirectories(incoming);
+    }
+
+    /**
+     * Stores a file and adds a reference to it
+     * @param file the file
+     * @return the hash of the content
+     * @throws IOException if the file cannot be read or stored
+     * @throws SQLException if the reference cannot be counted
+     */
+    public String store(Path file) throws IOException, SQLException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return store(in);
+        }
+    }
+
+    /**
+     * Stores content and adds a reference to it
+     * @param data the content
+     * @return the hash of the content
+     * @throws IOException if the content cannot be stored
+     * @throws SQLException if the reference cannot be counted
+     */
+    public String store(byte[] data) throws IOException, SQLException {
+        return store(new ByteArrayInputStream(data));
+    }
+
+    /**
+     * Copies the content to a temporary file while hashing it, then moves it into place unless it is stored already
+     * @param in the content
+     * @return the hash of the content
+     */
+    private String store(InputStream in) throws IOException, SQLException {
+        Path temp = Files.createTempFile(incoming, "attachment", null);
+        try {
+            DigestInputStream digestIn = new DigestInputStream(in, sha256());
+            long size = Files.copy(digestIn, temp, StandardCopyOption.REPLACE_EXISTING);
+            String hash = HexFormat.of().formatHex(digestIn.getMessageDigest().digest());
+            Path target = path(hash);
+            ReentrantLock lock = lock(hash);
+            lock.lock();
+            try {
+                boolean movedIn = !Files.exists(target);
+                if (movedIn) {
+                    Files.createDirectories(target.getParent());
+                    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+                    storedCount.increment();
+                } else {
+                    deduplicatedCount.increment();
+                }
+                countReference(hash, size, movedIn);
+            } finally {
+                lock.unlock();
+            }
+            return hash;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Takes over a file whose content is known to hash to the given value and adds a reference to it
+     * The file is moved into place instead of copied
+     * @param file the file, moved away or deleted
+     * @param hash the hash of its content
+     * @throws IOException if the file cannot be moved
+     * @throws SQLException if the reference cannot be counted
+     */
+    public void adopt(Path file, String hash) throws IOException, SQLException {
+        Path target = path(hash);
+        ReentrantLock lock = lock(hash);
+        lock.lock();
+        try {
+            long size = Files.size(file);
+            boolean movedIn = !Files.exists(target);
+            if (movedIn) {
+                Files.createDirectories(target.getParent());
+                Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+                storedCount.increment();
+            } else {
+                deduplicatedCount.increment();
+                Files.delete(file);
+            }
+            countReference(hash, size, movedIn);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the reference row of a file, called with the hash's lock held
+     * A file this call moved into place has no other row, it is deleted again if the row cannot be added,
+     * so no file is left on disk that nothing would ever delete
+     * @param hash the hash of the content
+     * @param size the size of the content
+     * @param movedIn true if the file was moved into place by this call
+     * @throws SQLException if the reference cannot be counted
+     */
+    private void countReference(String hash, long size, boolean movedIn) throws SQLException {
+        try (Connection con = pool.acquire();
+             PreparedStatement preparedStatement = con.prepareStatement(ADD_REFERENCE)) {
+            preparedStatement.setString(1, hash);
+            preparedStatement.setLong(2, size);
+            preparedStatement.executeUpdate();
+        } catch (SQLException e) {
+            if (movedIn) {
+                try {
+                    Files.deleteIfExists(path(hash));
+                    storedCount.decrement();
+                } catch (IOException deleteFailure) {
+                    e.addSuppressed(deleteFailure);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Adds a reference to an attachment that is stored already
+     * @param hash the hash of the content
+     * @throws IOException if the attachment is not stored
+     * @throws SQLException if the reference cannot be counted
+     */
+    public void addReference(String hash) throws IOException, SQLException {
+        ReentrantLock lock = lock(hash);
+        lock.lock();
+        try (Connection con = pool.acquire();
+             PreparedStatement preparedStatement = con.prepareStatement(ADD_REFERENCE)) {
+            preparedStatement.setString(1, hash);
+            preparedStatement.setLong(2, Files.size(path(hash))); //fails if the file is gone
+            preparedStatement.executeUpdate();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return directory the attachments are stored in
+     */
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * @param hash the hash of the content
+     * @return true if the attachment is stored
+     */
+    public boolean contains(String hash) {
+        return isHash(hash) && Files.exists(path(hash));
+    }
+
+    /**
+     * @param hash the hash of the content
+     * @return the size of the attachment in bytes
+     * @throws IOException if the attachment is not stored
+     */
+    public long size(String hash) throws IOException {
+        return Files.size(path(hash));
+    }
+
+    /**
+     * Reads part of an attachment
+     * @param hash the hash of the content
+     * @param offset where to start
+     * @param maxLength most bytes to read
+     * @return the bytes, fewer than maxLength at the end of the attachment
+     * @throws IOException if the attachment cannot be read
+     */
+    public byte[] readChunk(String hash, long offset, int maxLength) throws IOException {
+        try (FileChannel channel = FileChannel.open(path(hash), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, Math.min(maxLength, channel.size() - offset)));
+            while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) >= 0) {
+                //read until full
+            }
+            return buffer.array();
+        }
+    }
+
+    /**
+     * Reads an attachment, large ones are mapped instead of copied onto the heap
+     * @param hash the hash of the content
+     * @return the content, positioned at its start
+     * @throws IOException if the attachment cannot be read
+     */
+    public ByteBuffer read(String hash) throws IOException {
+        try (FileChannel channel = FileChannel.open(path(hash), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= MAP_THRESHOLD) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                //read until full
+            }
+            return buffer.flip();
+        }
+    }
+
+    /**
+     * Removes a reference, the file is deleted with the last one
+     * @param hash the hash of the content
+     */
+    public void release(String hash) {
+        ReentrantLock lock = lock(hash);
+        lock.lock();
+        try (Connection con = pool.acquire()) {
+            int remaining;
+            try (PreparedStatement preparedStatement = con.prepareStatement(REMOVE_REFERENCE)) {
+                preparedStatement.setString(1, hash);
+                try (ResultSet rs = preparedStatement.executeQuery()) {
+                    remaining = rs.next() ? rs.getInt(1) : 0;
+                }
+            }
+            if (remaining <= 0) {
+                try (PreparedStatement preparedStatement = con.prepareStatement(DELETE_UNREFERENCED)) {
+                    preparedStatement.setString(1, hash);
+                    preparedStatement.executeUpdate();
+                }
+                Files.deleteIfExists(path(hash));
+            }
+        } catch (SQLException | IOException e) {
+            logger.log(Level.WARNING, "Could not release attachment " + hash, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return attachments written to disk
+     */
+    public long getStoredCount() {
+        return storedCount.sum();
+    }
+
+    /**
+     * @return attachments that were stored already and only got another reference
+     */
+    public long getDeduplicatedCount() {
+        return deduplicatedCount.sum();
+    }
+
+    /**
+     * Wraps a buffer returned by read, for APIs that want a stream
+     * @param buffer the buffer
+     * @return a stream over the remaining bytes, the buffer itself is not moved
+     */
+    public static InputStream asInputStream(ByteBuffer buffer) {
+        ByteBuffer content = buffer.duplicate();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return content.hasRemaining() ? content.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (!content.hasRemaining()) {
+                    return -1;
+                }
+                int n = Math.min(len, content.remaining());
+                content.get(b, off, n);
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return content.remaining();
+            }
+        };
+    }
+
+    /**
+     * Files are spread over subdirectories named by the first two hex digits of the hash
+     * @param hash the hash
+     * @return the path of the file
+     */
+    private Path path(String hash) {
+        if (!isHash(hash)) {
+            throw new IllegalArgumentException("Not an attachment hash: " + hash);
+        }
+        return root.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    /**
+     * @param hash a string from the client or the database
+     * @return true if it is a lowercase hex SHA-256
+     */
+    public static boolean isHash(String hash) {
+        return hash != null && hash.matches("[0-9a-f]{64}");
+    }
+
+    /**
+     * Hashes a file without reading it into memory
+     * @param file the file
+     * @return the SHA-256 of the content as lowercase hex
+     * @throws IOException if the file cannot be read
+     */
+    public static String hash(Path file) throws IOException {
+        try (DigestInputStream in = new DigestInputStream(Files.newInputStream(file), sha256())) {
+            in.transferTo(OutputStream.nullOutputStream());
+            return HexFormat.of().formatHex(in.getMessageDigest().digest());
+        }
+    }
+
+    private ReentrantLock lock(String hash) {
+        return locks[Math.floorMod(hash.hashCode(), LOCK_STRIPES)];
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); //every JVM has SHA-256
+        }
+    }
+}
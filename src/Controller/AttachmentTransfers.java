@@ -0,0 +1,212 @@
+package Controller;
+
+import Model.Commands;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Client side of attachment transfers
+ * Files are uploaded and downloaded one chunk at a time, every chunk carries its offset and a CRC32 and the next one
+ * is only sent or asked for once the previous one has been acknowledged, so only one chunk is ever in memory
+ * The server keeps what it has received of an upload and a download is written to a partial file next to its target,
+ * so both resume where they stopped
+ */
+public class AttachmentTransfers {
+    public static final int CHUNK_BYTES = 256 * 1024; //the server accepts chunks up to its own chunk size, 256 KB by default
+    private static final int MAX_RETRIES = 3; //chunks that may fail their checksum in a row
+
+    private final Consumer<Object[]> sender;
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final Map<String, Download> downloads = new ConcurrentHashMap<>();
+
+    /**
+     * @param sender sends a command to the server
+     */
+    public AttachmentTransfers(Consumer<Object[]> sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * Uploads a file, the server continues a previous upload of the same content and skips it if it has it already
+     * Hashes the file first, call it off the event dispatch thread
+     * @param file the file
+     * @return completed with the hash of the file once the server has all of it
+     * @throws IOException if the file cannot be read
+     */
+    public CompletableFuture<String> upload(Path file) throws IOException {
+        String hash = AttachmentStore.hash(file);
+        long size = Files.size(file);
+        Upload upload = new Upload(file, size);
+        Upload running = uploads.putIfAbsent(hash, upload);
+        if (running != null) {
+            return running.done; //the same content is on its way already
+        }
+        sender.accept(new Object[]{Commands.UPLOAD_START_REQUEST, hash, size});
+        return upload.done;
+    }
+
+    /**
+     * Sends the chunk the server wants next
+     * @param hash the hash of the file
+     * @param offset where the server continues
+     */
+    public void uploadAcknowledged(String hash, long offset) {
+        Upload upload = uploads.get(hash);
+        if (upload == null) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(upload.file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(CHUNK_BYTES, upload.size - offset));
+            while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) >= 0) {
+                //read until full
+            }
+            if (buffer.hasRemaining()) {
+                throw new IOException("File changed while it was uploaded!");
+            }
+            byte[] data = buffer.array();
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            sender.accept(new Object[]{Commands.UPLOAD_CHUNK, hash, offset, data, crc.getValue()});
+        } catch (IOException | RuntimeException e) {
+            uploads.remove(hash);
+            upload.done.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * @param hash the hash of the file the server has now
+     */
+    public void uploadCompleted(String hash) {
+        Upload upload = uploads.remove(hash);
+        if (upload != null) {
+            upload.done.complete(hash);
+        }
+    }
+
+    /**
+     * @param hash the hash of the file
+     * @param reason why the server gave up
+     */
+    public void uploadFailed(String hash, String reason) {
+        Upload upload = uploads.remove(hash);
+        if (upload != null) {
+            upload.done.completeExceptionally(new IOException(reason));
+        }
+    }
+
+    /**
+     * Downloads an attachment, continuing a partial download of it to the same file
+     * @param hash the hash of the attachment
+     * @param target the file to write it to
+     * @return completed with the target once it is written and verified
+     * @throws IOException if the partial file cannot be read
+     */
+    public CompletableFuture<Path> download(String hash, Path target) throws IOException {
+        Download download = new Download(target, target.resolveSibling(target.getFileName() + ".part"));
+        Download running = downloads.putIfAbsent(hash, download);
+        if (running != null) {
+            return running.done;
+        }
+        long offset = Files.exists(download.part) ? Files.size(download.part) : 0;
+        sender.accept(new Object[]{Commands.DOWNLOAD_REQUEST, hash, offset});
+        return download.done;
+    }
+
+    /**
+     * Appends a chunk to the partial file and asks for the next one, the file is verified after the last chunk
+     * @param hash the hash of the attachment
+     * @param offset where the chunk starts
+     * @param data the chunk
+     * @param crc32 the CRC32 of the chunk
+     * @param size the size of the attachment
+     */
+    public void downloadChunk(String hash, long offset, byte[] data, long crc32, long size) {
+        Download download = downloads.get(hash);
+        if (download == null) {
+            return;
+        }
+        try {
+            long length;
+            try (FileChannel channel = FileChannel.open(download.part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                length = channel.size();
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                if (offset == length && crc.getValue() == crc32 && offset + data.length <= size) {
+                    ByteBuffer buffer = ByteBuffer.wrap(data);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer, offset + buffer.position());
+                    }
+                    length += data.length;
+                    download.retries = 0;
+                } else if (++download.retries > MAX_RETRIES) {
+                    throw new IOException("Attachment " + hash + " keeps arriving corrupted!");
+                }
+            }
+            if (length < size) {
+                sender.accept(new Object[]{Commands.DOWNLOAD_REQUEST, hash, length});
+                return;
+            }
+            downloads.remove(hash);
+            if (!AttachmentStore.hash(download.part).equals(hash)) {
+                Files.delete(download.part);
+                throw new IOException("Downloaded attachment does not match its hash " + hash + "!");
+            }
+            Files.move(download.part, download.target, StandardCopyOption.REPLACE_EXISTING);
+            download.done.complete(download.target);
+        } catch (IOException | RuntimeException e) {
+            downloads.remove(hash);
+            download.done.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * @param hash the hash of the attachment
+     * @param reason why the server could not send it
+     */
+    public void downloadFailed(String hash, String reason) {
+        Download download = downloads.remove(hash);
+        if (download != null) {
+            download.done.completeExceptionally(new IOException(reason));
+        }
+    }
+
+    /**
+     * Fails every running transfer, the partial downloads are kept so they can be resumed
+     */
+    public void close() {
+        IOException closed = new IOException("Connection closed!");
+        uploads.values().forEach(upload -> upload.done.completeExceptionally(closed));
+        downloads.values().forEach(download -> download.done.completeExceptionally(closed));
+        uploads.clear();
+        downloads.clear();
+    }
+
+    private record Upload(Path file, long size, CompletableFuture<String> done) {
+        Upload(Path file, long size) {
+            this(file, size, new CompletableFuture<>());
+        }
+    }
+
+    private static class Download {
+        private final Path target;
+        private final Path part;
+        private final CompletableFuture<Path> done = new CompletableFuture<>();
+        private int retries; //only touched by the thread reading from the server
+
+        Download(Path target, Path part) {
+            this.target = target;
+            this.part = part;
+        }
+    }
+}
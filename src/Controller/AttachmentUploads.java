@@ -0,0 +1,282 @@
+package Controller;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Receives attachments in chunks and hands them to the attachment store once they are complete
+ * A transfer is named by the SHA-256 of the file, the bytes received so far are kept in a partial file,
+ * so a transfer that was interrupted, even by a server restart, resumes at the length of that file
+ * Every chunk carries its offset and a CRC32 and is written straight to the partial file, the whole file is
+ * hashed once more before it is moved into the store
+ * A stored upload is held by a reference of its own for a day, so it can be sent and downloaded before the messages
+ * that use it take their references, the hold is marked by a file next to the partial files and released by a sweep
+ * that also runs at startup, so holds do not outlive a restart either
+ */
+public class AttachmentUploads {
+    private static final Logger logger = Logger.getLogger(AttachmentUploads.class.getName());
+    private static final Duration STALE_AFTER = Duration.ofDays(1); //partial files nobody resumed
+    private static final Duration HOLD_FOR = Duration.ofDays(1); //how long an upload keeps its own reference
+    private static final long SWEEP_MINUTES = 60;
+    private static final int LOCK_STRIPES = 64;
+
+    private final AttachmentStore attachments;
+    private final Path directory;
+    private final long maxSize;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES]; //chunks of the same file are written one at a time
+    private final LongAdder receivedBytes = new LongAdder();
+    private final LongAdder completedCount = new LongAdder();
+    private final LongAdder rejectedChunkCount = new LongAdder();
+    private final LongAdder releasedHoldCount = new LongAdder();
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("Upload sweeper").daemon().factory());
+
+    /**
+     * @param attachments store completed files are moved into
+     * @param directory directory for the partial files
+     * @param maxSize largest file accepted, in bytes
+     * @throws IOException if the directory cannot be created
+     */
+    public AttachmentUploads(AttachmentStore attachments, Path directory, long maxSize) throws IOException {
+        this.attachments = attachments;
+        this.directory = directory;
+        this.maxSize = maxSize;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        Files.createDirectories(directory);
+        sweeper.scheduleWithFixedDelay(this::sweep, 0, SWEEP_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Starts or resumes a transfer
+     * @param hash the SHA-256 of the file
+     * @param size the size of the file
+     * @return the offset the next chunk has to start at, the size if the file is stored already
+     * @throws IOException if the hash or size is not acceptable
+     */
+    public long start(String hash, long size) throws IOException {
+        check(hash, size);
+        if (attachments.contains(hash) && hold(hash)) {
+            return size; //the uploader holds it again for a day
+        }
+        Path part = part(hash);
+        return Files.exists(part) ? Math.min(Files.size(part), size) : 0;
+    }
+
+    /**
+     * Writes a chunk, chunks that do not start where the partial file ends are ignored
+     * When the last chunk arrives the file is verified and moved into the attachment store
+     * @param hash the SHA-256 of the file
+     * @param size the size of the file
+     * @param offset where the chunk starts
+     * @param data the chunk
+     * @param crc32 the CRC32 of the chunk
+     * @return the offset the next chunk has to start at, the size once the file is stored
+     * @throws IOException if the chunk cannot be written or the complete file does not match its hash
+     */
+    public long write(String hash, long size, long offset, byte[] data, long crc32) throws IOException {
+        check(hash, size);
+        ReentrantLock lock = lock(hash);
+        lock.lock();
+        try {
+            if (attachments.contains(hash)) {
+                return size; //finished by another transfer of the same file
+            }
+            Path part = part(hash);
+            try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                long length = channel.size();
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                if (offset != length || crc.getValue() != crc32 || offset + data.length > size) {
+                    rejectedChunkCount.increment();
+                    return length; //the client continues from what is really there
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, offset + buffer.position());
+                }
+                receivedBytes.add(data.length);
+                length += data.length;
+                if (length < size) {
+                    return length;
+                }
+            }
+            complete(hash, part);
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Verifies the received file and moves it into the attachment store
+     * @param hash the SHA-256 the file has to have
+     * @param part the partial file, deleted if it does not match
+     * @throws IOException if the file does not match or cannot be moved
+     */
+    private void complete(String hash, Path part) throws IOException {
+        if (!AttachmentStore.hash(part).equals(hash)) {
+            Files.delete(part); //start over, every chunk passed its CRC so the client sent the wrong file
+            throw new IOException("Uploaded attachment does not match its hash " + hash + "!");
+        }
+        try {
+            attachments.adopt(part, hash); //the reference the upload holds until the sweep releases it
+            Files.write(held(hash), new byte[0]);
+        } catch (SQLException e) {
+            throw new IOException("Could not count the uploaded attachment " + hash, e);
+        }
+        completedCount.increment();
+    }
+
+    /**
+     * Holds a stored attachment for another day, taking a reference unless it is held already
+     * @param hash the SHA-256 of the file
+     * @return false if the attachment is gone, it has to be uploaded then
+     */
+    private boolean hold(String hash) {
+        ReentrantLock lock = lock(hash);
+        lock.lock();
+        try {
+            Path held = held(hash);
+            if (Files.exists(held)) {
+                Files.setLastModifiedTime(held, FileTime.from(Instant.now()));
+                return true;
+            }
+            Files.createFile(held);
+            try {
+                attachments.addReference(hash);
+            } catch (IOException | SQLException e) {
+                Files.deleteIfExists(held);
+                throw e;
+            }
+            return true;
+        } catch (IOException | SQLException e) {
+            logger.log(Level.FINE, "Could not hold attachment " + hash, e);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes stale partial files and releases the holds that expired
+     */
+    private void sweep() {
+        deleteStale();
+        releaseExpiredHolds();
+    }
+
+    /**
+     * Releases the references of uploads held for longer than a day, the messages that use them hold their own
+     */
+    private void releaseExpiredHolds() {
+        Instant cutoff = Instant.now().minus(HOLD_FOR);
+        try (DirectoryStream<Path> holds = Files.newDirectoryStream(directory, "*.held")) {
+            for (Path held : holds) {
+                String name = held.getFileName().toString();
+                String hash = name.substring(0, name.length() - ".held".length());
+                ReentrantLock lock = lock(hash);
+                lock.lock();
+                try {
+                    if (Files.getLastModifiedTime(held).toInstant().isBefore(cutoff) && Files.deleteIfExists(held)) {
+                        attachments.release(hash);
+                        releasedHoldCount.increment();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not release expired uploads!", e);
+        }
+    }
+
+    /**
+     * Deletes partial files that have not been written to for a day
+     */
+    private void deleteStale() {
+        Instant cutoff = Instant.now().minus(STALE_AFTER);
+        try (DirectoryStream<Path> parts = Files.newDirectoryStream(directory, "*.part")) {
+            for (Path part : parts) {
+                if (Files.getLastModifiedTime(part).toInstant().isBefore(cutoff)) {
+                    Files.deleteIfExists(part);
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not delete stale uploads!", e);
+        }
+    }
+
+    private void check(String hash, long size) throws IOException {
+        if (!AttachmentStore.isHash(hash)) {
+            throw new IOException("Not an attachment hash: " + hash);
+        }
+        if (size < 1 || size > maxSize) {
+            throw new IOException("Attachment size of " + size + " bytes is not accepted!");
+        }
+    }
+
+    private Path part(String hash) {
+        return directory.resolve(hash + ".part");
+    }
+
+    private Path held(String hash) {
+        return directory.resolve(hash + ".held");
+    }
+
+    private ReentrantLock lock(String hash) {
+        return locks[Math.floorMod(hash.hashCode(), LOCK_STRIPES)];
+    }
+
+    /**
+     * @return chunk bytes written
+     */
+    public long getReceivedBytes() {
+        return receivedBytes.sum();
+    }
+
+    /**
+     * @return files received completely
+     */
+    public long getCompletedCount() {
+        return completedCount.sum();
+    }
+
+    /**
+     * @return chunks ignored because of their offset or checksum
+     */
+    public long getRejectedChunkCount() {
+        return rejectedChunkCount.sum();
+    }
+
+    /**
+     * @return upload references released after their hold expired
+     */
+    public long getReleasedHoldCount() {
+        return releasedHoldCount.sum();
+    }
+
+    /**
+     * Stops the sweep
+     */
+    public void shutdown() {
+        sweeper.shutdownNow();
+    }
+}
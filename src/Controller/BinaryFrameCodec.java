@@ -0,0 +1,358 @@
+package Controller;
+
+import Model.Commands;
+import Model.Message;
+import Model.User;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Compact hand-written frame codec
+ * A frame is the Commands ordinal as one byte followed by the payload values, each value starts with a type tag
+ * String lists are read back as LinkedList, message lists as ArrayList, an empty list has no elements to tell
+ * its type, so it is written as a string list if it is a LinkedList and as a message list otherwise
+ * Lengths and counts are unsigned varints, longs are zigzag varints, strings are UTF-8 and a string length of 0 means null (length + 1 otherwise)
+ * Every length is checked against the bytes that are left, so malformed input is rejected instead of allocated
+ */
+public class BinaryFrameCodec implements FrameCodec {
+    public static final byte ID = 2;
+
+    //value tags
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte STRING_LIST = 2;
+    private static final byte STRING_ARRAY = 3;
+    private static final byte USER = 4;
+    private static final byte MESSAGE = 5;
+    private static final byte MESSAGE_LIST = 6;
+    private static final byte LONG = 7;
+    private static final byte BYTES = 8;
+
+    private static final Commands[] commands = Commands.values();
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encode(Object[] command) throws IOException {
+        Writer writer = new Writer();
+        writer.writeByte(((Commands) command[0]).ordinal());
+        for (int i = 1; i < command.length; i++) {
+            writeValue(writer, command[i]);
+        }
+        return writer.toByteArray();
+    }
+
+    @Override
+    public Object[] decode(byte[] frame) throws IOException {
+        Reader reader = new Reader(frame);
+        int opcode = reader.readByte();
+        if (opcode >= commands.length) {
+            throw new IOException("Unknown command opcode: " + opcode);
+        }
+        List<Object> command = new ArrayList<>(3);
+        command.add(commands[opcode]);
+        while (reader.hasRemaining()) {
+            command.add(readValue(reader));
+        }
+        return command.toArray();
+    }
+
+    /**
+     * Writes a tagged payload value
+     * @param writer the writer
+     * @param value the value
+     * @throws IOException if the value type is not supported
+     */
+    private static void writeValue(Writer writer, Object value) throws IOException {
+        if (value == null) {
+            writer.writeByte(NULL);
+        } else if (value instanceof String string) {
+            writer.writeByte(STRING);
+            writer.writeString(string);
+        } else if (value instanceof Long number) {
+            writer.writeByte(LONG);
+            writer.writeVarLong((number << 1) ^ (number >> 63));
+        } else if (value instanceof byte[] bytes) {
+            writer.writeByte(BYTES);
+            writer.writeBytes(bytes);
+        } else if (value instanceof String[] strings) {
+            writer.writeByte(STRING_ARRAY);
+            writer.writeStrings(Arrays.asList(strings));
+        } else if (value instanceof User user) {
+            writer.writeByte(USER);
+            writeUser(writer, user);
+        } else if (value instanceof Message message) {
+            writer.writeByte(MESSAGE);
+            writeMessage(writer, message);
+        } else if (value instanceof List<?> list && (list.isEmpty() ? !(list instanceof LinkedList) : list.stream().allMatch(Message.class::isInstance))) {
+            writer.writeByte(MESSAGE_LIST);
+            writer.writeVarInt(list.size());
+            for (Object message : list) {
+                writeMessage(writer, (Message) message);
+            }
+        } else if (value instanceof List<?> list && list.stream().allMatch(String.class::isInstance)) {
+            writer.writeByte(STRING_LIST);
+            writer.writeStrings(list);
+        } else {
+            throw new IOException("Cannot encode " + value.getClass().getName());
+        }
+    }
+
+    /**
+     * Reads a tagged payload value
+     * @param reader the reader
+     * @return the value
+     * @throws IOException if the tag is unknown or the value is malformed
+     */
+    private static Object readValue(Reader reader) throws IOException {
+        int tag = reader.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return reader.readString();
+            case LONG:
+                long zigzag = reader.readVarLong();
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            case BYTES:
+                return reader.readBytes();
+            case STRING_LIST:
+                return reader.readStrings(new LinkedList<>());
+            case STRING_ARRAY:
+                return reader.readStrings(new ArrayList<>()).toArray(new String[0]);
+            case USER:
+                return readUser(reader);
+            case MESSAGE:
+                return readMessage(reader);
+            case MESSAGE_LIST:
+                int count = reader.readCount();
+                ArrayList<Message> messages = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    messages.add(readMessage(reader));
+                }
+                return messages;
+            default:
+                throw new IOException("Unknown value tag: " + tag);
+        }
+    }
+
+    private static void writeUser(Writer writer, User user) {
+        writer.writeString(user.getUsername());
+        writer.writeString(user.getPassword());
+        writer.writeString(user.getFirstName());
+        writer.writeString(user.getLastName());
+        writer.writeString(user.getImagePath());
+        writer.writeBytes(user.getImageByte());
+        writer.writeByte(user.isOnline() ? 1 : 0);
+    }
+
+    private static User readUser(Reader reader) throws IOException {
+        String username = reader.readString();
+        if (username == null) {
+            throw new IOException("User without a username!");
+        }
+        User user = new User(username, reader.readString(), reader.readString(), reader.readString(), reader.readString(), reader.readBytes());
+        user.setOnline(reader.readByte() == 1);
+        return user;
+    }
+
+    private static void writeMessage(Writer writer, Message message) throws IOException {
+        writer.writeString(message.getText());
+        writer.writeString(message.getSentBy());
+        writer.writeStrings(message.getRecipientList());
+        writer.writeString(message.getSendTime());
+        writer.writeString(message.getImagePath());
+        writer.writeString(message.getAttachment());
+        writer.writeBytes(message.getImageData());
+        if (message.getImageData() != null) {
+            writer.writeString(message.getImageType());
+            writer.writeVarInt(message.getImageWidth());
+            writer.writeVarInt(message.getImageHeight());
+        }
+    }
+
+    private static Message readMessage(Reader reader) throws IOException {
+        Message.Builder builder = new Message.Builder()
+                .withText(reader.readString())
+                .withSentBy(reader.readString())
+                .addRecipients(reader.readStrings(new LinkedList<>()))
+                .withSendTime(reader.readString())
+                .withImagePath(reader.readString())
+                .withAttachment(reader.readString());
+        byte[] image = reader.readBytes();
+        if (image != null) {
+            builder.withImage(image, reader.readString(), reader.readVarInt(), reader.readVarInt()); //decoded by the client when shown
+        }
+        return builder.build();
+    }
+
+    /**
+     * Growable byte buffer with the primitive encodings of the codec
+     */
+    private static class Writer {
+        private byte[] bytes = new byte[128];
+        private int size;
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            bytes[size++] = (byte) value;
+        }
+
+        void writeVarInt(int value) {
+            ensureCapacity(5);
+            while ((value & ~0x7F) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void writeVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void writeString(String value) {
+            writeBytes(value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void writeBytes(byte[] value) {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            writeVarInt(value.length + 1);
+            ensureCapacity(value.length);
+            System.arraycopy(value, 0, bytes, size, value.length);
+            size += value.length;
+        }
+
+        void writeStrings(List<?> values) {
+            writeVarInt(values.size());
+            for (Object value : values) {
+                writeString((String) value); //callers checked that every value is a string
+            }
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(size + extra, bytes.length * 2));
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+
+    /**
+     * Bounds checked reader for the primitive encodings of the codec
+     */
+    private static class Reader {
+        private final byte[] bytes;
+        private int position;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        boolean hasRemaining() {
+            return position < bytes.length;
+        }
+
+        int readByte() throws IOException {
+            if (position >= bytes.length) {
+                throw new IOException("Frame ended unexpectedly!");
+            }
+            return bytes[position++] & 0xFF;
+        }
+
+        int readVarInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    if (value < 0) {
+                        throw new IOException("Varint out of range!");
+                    }
+                    return value;
+                }
+            }
+            throw new IOException("Varint is too long!");
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Varlong is too long!");
+        }
+
+        /**
+         * Reads an element count, every element takes at least one byte so larger counts are malformed
+         * @return the count
+         * @throws IOException if the count cannot be right
+         */
+        int readCount() throws IOException {
+            int count = readVarInt();
+            if (count > bytes.length - position) {
+                throw new IOException("Count exceeds frame size: " + count);
+            }
+            return count;
+        }
+
+        byte[] readBytes() throws IOException {
+            int length = readVarInt();
+            if (length == 0) {
+                return null;
+            }
+            length--;
+            if (length > bytes.length - position) {
+                throw new IOException("Length exceeds frame size: " + length);
+            }
+            byte[] value = Arrays.copyOfRange(bytes, position, position + length);
+            position += length;
+            return value;
+        }
+
+        String readString() throws IOException {
+            int length = readVarInt();
+            if (length == 0) {
+                return null;
+            }
+            length--;
+            if (length > bytes.length - position) {
+                throw new IOException("Length exceeds frame size: " + length);
+            }
+            String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        <T extends List<String>> T readStrings(T target) throws IOException {
+            int count = readCount();
+            for (int i = 0; i < count; i++) {
+                target.add(readString());
+            }
+            return target;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package Controller;
+
+import java.io.IOException;
+
+/**
+ * A connection that is read by a thread blocking on the socket
+ */
+public interface BlockingConnection extends ClientConnection {
+
+    /**
+     * Blocks until the next command arrives
+     * @return the command
+     * @throws IOException if the connection is closed or the data could not be read
+     */
+    Object[] read() throws IOException;
+}
@@ -0,0 +1,205 @@
+package Controller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The chat sessions that are open on the server
+ * A chat is keyed by an ID made from its sorted members, so the same members in any order are the same chat
+ * and looking one up, opening or closing it takes the same time however many chats are open
+ * An index from every user to the IDs of their chats lets the chats of a user who leaves be found
+ * without looking at anybody else's
+ * A chat and the index entries of its members change together while the members' locks are held, taken in one
+ * order, so a user's cleanup cannot run between a chat being opened and its members being indexed
+ */
+public class ChatRegistry {
+    private static final int LOCK_STRIPES = 64;
+    private final ConcurrentHashMap<String, List<String>> chats = new ConcurrentHashMap<>(); //chat id -> members in the order the chat was opened with
+    private final ConcurrentHashMap<String, Set<String>> chatsByUser = new ConcurrentHashMap<>(); //username -> chat ids, the sets are only changed inside compute
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+    /**
+     * Creates an empty registry
+     */
+    public ChatRegistry() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Makes the ID of a chat, each member is prefixed with its length so no two member sets share an ID
+     * @param members the members, in any order
+     * @return the canonical chat ID
+     */
+    public static String chatId(Collection<String> members) {
+        StringBuilder id = new StringBuilder();
+        for (String member : new TreeSet<>(members)) {
+            id.append(member.length()).append(':').append(member);
+        }
+        return id.toString();
+    }
+
+    /**
+     * Opens a chat unless one with the same members is open already
+     * @param members the members
+     * @return true if the chat was opened by this call
+     */
+    public boolean register(List<String> members) {
+        String id = chatId(members);
+        List<ReentrantLock> held = lock(members);
+        try {
+            if (chats.putIfAbsent(id, List.copyOf(members)) != null) {
+                return false;
+            }
+            for (String member : members) {
+                chatsByUser.compute(member, (user, ids) -> {
+                    Set<String> chatIds = ids == null ? new HashSet<>() : ids;
+                    chatIds.add(id);
+                    return chatIds;
+                });
+            }
+            if (!chats.containsKey(id)) {
+                members.forEach(member -> unindex(member, id)); //cannot happen while the locks are held, kept as a guard
+                return false;
+            }
+            return true;
+        } finally {
+            unlock(held);
+        }
+    }
+
+    /**
+     * Closes a chat
+     * @param members the members, in any order
+     * @return the members as the chat was opened with, or null if no such chat was open
+     */
+    public List<String> remove(Collection<String> members) {
+        String id = chatId(members);
+        List<ReentrantLock> held = lock(members);
+        try {
+            List<String> removed = chats.remove(id);
+            if (removed != null) {
+                removed.forEach(member -> unindex(member, id));
+            }
+            return removed;
+        } finally {
+            unlock(held);
+        }
+    }
+
+    /**
+     * Closes every chat of a user, e.g. when the user logs out or disconnects
+     * @param username the user
+     * @return the members of the closed chats as they were opened with
+     */
+    public List<List<String>> removeUser(String username) {
+        List<List<String>> removed = new ArrayList<>();
+        List<String> ids;
+        while (!(ids = chatIds(username)).isEmpty()) { //again if a chat was opened while closing the others
+            for (String id : ids) {
+                List<String> members = chats.get(id);
+                List<ReentrantLock> held = lock(members == null ? List.of(username) : members);
+                try {
+                    if (members != null && chats.remove(id, members)) {
+                        removed.add(members);
+                        members.forEach(member -> unindex(member, id));
+                    } else if (!chats.containsKey(id)) {
+                        unindex(username, id);
+                    }
+                } finally {
+                    unlock(held);
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @param username the user
+     * @return a copy of the ids of the user's chats
+     */
+    private List<String> chatIds(String username) {
+        List<String> ids = new ArrayList<>();
+        chatsByUser.computeIfPresent(username, (user, chatIds) -> {
+            ids.addAll(chatIds);
+            return chatIds;
+        });
+        return ids;
+    }
+
+    /**
+     * Takes the locks of the given users, always in the same order so two calls cannot wait on each other
+     * @param users the users
+     * @return the locks taken
+     */
+    private List<ReentrantLock> lock(Collection<String> users) {
+        int[] stripes = new int[users.size()];
+        int count = 0;
+        for (String user : users) {
+            stripes[count++] = Math.floorMod(user.hashCode(), LOCK_STRIPES);
+        }
+        Arrays.sort(stripes);
+        List<ReentrantLock> held = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || stripes[i] != stripes[i - 1]) { //members on the same stripe share the lock
+                locks[stripes[i]].lock();
+                held.add(locks[stripes[i]]);
+            }
+        }
+        return held;
+    }
+
+    private void unlock(List<ReentrantLock> held) {
+        held.forEach(ReentrantLock::unlock);
+    }
+
+    /**
+     * @param username the user
+     * @return number of open chats the user is a member of
+     */
+    public int chatCount(String username) {
+        int[] count = new int[1];
+        chatsByUser.computeIfPresent(username, (user, ids) -> {
+            count[0] = ids.size();
+            return ids;
+        });
+        return count[0];
+    }
+
+    /**
+     * @return number of users that are in at least one open chat
+     */
+    public int indexedUserCount() {
+        return chatsByUser.size();
+    }
+
+    private void unindex(String member, String id) {
+        chatsByUser.computeIfPresent(member, (user, ids) -> {
+            ids.remove(id);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+
+    /**
+     * @param members the members, in any order
+     * @return true if a chat with these members is open
+     */
+    public boolean contains(Collection<String> members) {
+        return chats.containsKey(chatId(members));
+    }
+
+    /**
+     * @return number of open chats
+     */
+    public int size() {
+        return chats.size();
+    }
+}
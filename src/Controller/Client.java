@@ -8,14 +8,17 @@ import View.MainPage;
 
 import javax.swing.*;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -29,13 +32,22 @@ public class Client extends Thread {
     private static final Logger logger = Logger.getLogger(Client.class.getName());
     private static final int serverPort = 2323;
     private static final String serverAddress = "127.0.0.1";
-    private Socket socket;
-    private ObjectOutputStream outputStream;
-    private ObjectInputStream inputStream;
+    private static final boolean legacyProtocol = Boolean.getBoolean("messenger.legacyProtocol"); //talk to servers without framed protocol support
+    private BlockingConnection connection;
     private User currentUser;
     private final MainPage mainPage;
     private final ConcurrentHashMap<LinkedList<String>, User> chatViewsMap = new ConcurrentHashMap<>();
     private final ViewController viewController;
+    private long presenceVersion = -1; //version of the active users list, -1 until a snapshot arrived
+    private boolean resyncRequested;
+    private ChatView storedMessagesView; //shows every page of stored messages of this login
+    private final AttachmentTransfers transfers = new AttachmentTransfers(this::sendToStream);
+    private static final Path contactDir = Path.of(System.getProperty("messenger.contactDir", System.getProperty("user.home") + "/.messenger")); //saved copies of the contact lists
+    private ContactBook contactBook; //the user's contacts, kept between sessions
+    private boolean contactSyncRequested;
+    private static final int MAX_CREDENTIAL_RETRIES = 5; //times a login or registration is sent again while the server is busy
+    private Object[] credentialRequest; //the login or registration, sent again if the server asks to retry later
+    private int credentialRetries;
 
     /**
      * Constructor used for logging in an existing user
@@ -48,7 +60,8 @@ public class Client extends Thread {
         this.viewController = viewController;
         initializeSocket();
         User user = new User(username, Encryptor.encryptPassword(password));
-        sendToStream(new Object[]{Commands.LOGIN_REQUEST, user});
+        credentialRequest = new Object[]{Commands.LOGIN_REQUEST, user};
+        sendToStream(credentialRequest);
         start();
     }
 
@@ -66,18 +79,23 @@ public class Client extends Thread {
         this.viewController = viewController;
         initializeSocket();
         User user = new User(username, Encryptor.encryptPassword(password), firstName, lastName, imagePath);
-        sendToStream(new Object[]{Commands.REGISTRATION_REQUEST, user});
+        credentialRequest = new Object[]{Commands.REGISTRATION_REQUEST, user};
+        sendToStream(credentialRequest);
         start();
     }
 
     /**
-     * Initializes the socket and input/output streams for communication with the server
+     * Initializes the socket and the connection used for communication with the server
      */
     private void initializeSocket() {
         try {
-            socket = new Socket(serverAddress, serverPort);
-            outputStream = new ObjectOutputStream(socket.getOutputStream());
-            inputStream = new ObjectInputStream(socket.getInputStream());
+            if (legacyProtocol) {
+                Socket socket = new Socket(serverAddress, serverPort);
+                connection = new LegacyStreamConnection(socket, socket.getInputStream());
+            } else {
+                //prefer the binary codec, fall back to serialized frames for servers that do not offer it
+                connection = WireProtocol.connect(serverAddress, serverPort, new BinaryFrameCodec(), new ObjectFrameCodec());
+            }
         } catch (IOException e) {
             logger.log(Level.SEVERE, "Could not establish a connection with the server!", e);
         }
@@ -86,15 +104,11 @@ public class Client extends Thread {
     @Override
     public void run() {
         try {
-            while (!Thread.currentThread().isInterrupted() && !socket.isClosed()) {
+            while (!Thread.currentThread().isInterrupted() && connection.isOpen()) {
                 try {
-                    Object receivedObject = inputStream.readObject();
                     //process commands received from the server (e.g. login)
-                    if (receivedObject instanceof Object[] object) {
-                        handleServerCommand(object);
-                    }
-
-                } catch (IOException | ClassNotFoundException e) {
+                    handleServerCommand(connection.read());
+                } catch (IOException e) {
                     logger.log(Level.WARNING, "Something went wrong reading object from server!", e.toString());
                     break;
                 }
@@ -122,6 +136,18 @@ public class Client extends Thread {
             case REMOVE_ACTIVE_USER -> removeFromActiveUsers((String) object[1]);
             case SHOW_STORED_MESSAGES -> showStoredMessages(object);
             case CLOSE_CHAT_VIEW -> closeChatView(object);
+            case PRESENCE_SNAPSHOT -> showPresenceSnapshot((Long) object[1], (String[]) object[2]);
+            case PRESENCE_DELTA -> applyPresenceDelta((Long) object[1], (String[]) object[2], (String[]) object[3]);
+            case UPLOAD_ACK -> transfers.uploadAcknowledged((String) object[1], (Long) object[2]);
+            case UPLOAD_COMPLETE -> transfers.uploadCompleted((String) object[1]);
+            case UPLOAD_FAILED -> transfers.uploadFailed((String) object[1], (String) object[2]);
+            case DOWNLOAD_CHUNK -> transfers.downloadChunk((String) object[1], (Long) object[2], (byte[]) object[3], (Long) object[4], (Long) object[5]);
+            case DOWNLOAD_FAILED -> transfers.downloadFailed((String) object[1], (String) object[2]);
+            case CONTACTS_SYNC -> applyContactSync((Long) object[1], (Long) object[2], (String[]) object[3], (String[]) object[4]);
+            case CONTACT_ADDED -> applyContactChange((Long) object[1], (String) object[2], true);
+            case CONTACT_REMOVED -> applyContactChange((Long) object[1], (String) object[2], false);
+            case PROFILE_IMAGE -> viewController.showProfilePicture((byte[]) object[1]);
+            case RETRY_LATER -> retryCredentialRequest((String) object[1], (Long) object[2]);
         }
     }
 
@@ -134,6 +160,12 @@ public class Client extends Thread {
         currentUser.setOnline(true);
         viewController.showFrontPage(currentUser, false);
         Thread.currentThread().setName(currentUser.getUsername() + " Client thread");
+        if (!legacyProtocol) {
+            //show the saved contacts at once and ask only for what changed since
+            contactBook = new ContactBook(contactDir, currentUser.getUsername());
+            showContacts();
+            requestContactSync();
+        }
     }
 
     /**
@@ -147,6 +179,36 @@ public class Client extends Thread {
         Thread.currentThread().setName(currentUser.getUsername() + " Client thread");
     }
 
+    /**
+     * Sends the login or registration again once the server has time to check it
+     * Gives up as a failed login or registration after a few attempts
+     * @param request name of the request the server did not admit
+     * @param retryAfterMillis time the server asked to wait
+     */
+    private void retryCredentialRequest(String request, long retryAfterMillis) {
+        Object[] pending = credentialRequest;
+        if (pending == null || !((Commands) pending[0]).name().equals(request)) {
+            return;
+        }
+        if (++credentialRetries > MAX_CREDENTIAL_RETRIES) {
+            if (pending[0] == Commands.LOGIN_REQUEST) {
+                handleUnsuccessfulLogin();
+            } else {
+                handleUnsuccessfulRegistration();
+            }
+            return;
+        }
+        logger.log(Level.INFO, "Server is busy, trying again in " + retryAfterMillis + " ms!");
+        Thread.ofVirtual().start(() -> {
+            try {
+                Thread.sleep(retryAfterMillis);
+                sendToStream(pending);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
     /**
      * Handles an unsuccessful login attempt
      */
@@ -194,14 +256,19 @@ public class Client extends Thread {
     }
 
     /**
-     * Displays stored messages for the current user
-     * @param object The command object containing stored messages
+     * Displays a page of stored messages for the current user and acknowledges it so the server sends the next one
+     * @param object The command object containing stored messages and the page number
      */
     private void showStoredMessages(Object[] object) {
-        ChatView chatView = new ChatView(viewController);
-        chatView.showChatView(currentUser.getUsername());
+        if (storedMessagesView == null) {
+            storedMessagesView = new ChatView(viewController);
+            storedMessagesView.showChatView(currentUser.getUsername());
+        }
         for (Message message : (ArrayList<Message>) object[1]) {
-            updateChatView(message, chatView);
+            updateChatView(message, storedMessagesView);
+        }
+        if (object.length > 2) {
+            sendToStream(new Object[]{Commands.STORED_MESSAGES_ACK, object[2]});
         }
     }
 
@@ -231,6 +298,19 @@ public class Client extends Thread {
         sendToStream(new Object[]{Commands.ADD_TO_CONTACTS_REQUEST, users});
     }
 
+    /**
+     * Removes selected users from the contact list
+     * @param selectedContacts The contacts to remove
+     */
+    public void removeFromContacts(List<Object> selectedContacts) {
+        for (Object contact : selectedContacts) {
+            LinkedList<String> users = new LinkedList<>();
+            users.add(currentUser.getUsername());
+            users.add(contact.toString());
+            sendToStream(new Object[]{Commands.REMOVE_FROM_CONTACTS_REQUEST, users});
+        }
+    }
+
     /**
      * Adds connected users to the active users list
      * @param connectedUsers The users to add to the active list
@@ -248,14 +328,70 @@ public class Client extends Thread {
     }
 
     /**
-     * Updates the contact list with new contacts
+     * Replaces the active users list with a snapshot from the server
+     * @param version the presence version of the snapshot
+     * @param users every active user
+     */
+    private void showPresenceSnapshot(long version, String[] users) {
+        if (version < presenceVersion) {
+            return; //a newer delta overtook it
+        }
+        ArrayList<String> activeUserList = mainPage.getActiveUsers();
+        synchronized (activeUserList) {
+            activeUserList.clear();
+            for (String user : users) {
+                if (!user.equals(currentUser.getUsername())) {
+                    activeUserList.add(user);
+                }
+            }
+            mainPage.getActiveUsersList().setListData(activeUserList.toArray());
+        }
+        presenceVersion = version;
+        resyncRequested = false;
+    }
+
+    /**
+     * Applies the users that came online or went offline, asks for a new snapshot if a version was missed
+     * @param version the presence version after the changes
+     * @param online users that came online
+     * @param offline users that went offline
+     */
+    private void applyPresenceDelta(long version, String[] online, String[] offline) {
+        if (presenceVersion < 0 || version <= presenceVersion) {
+            return; //already part of the snapshot
+        }
+        if (version != presenceVersion + 1) {
+            if (!resyncRequested) {
+                resyncRequested = true;
+                sendToStream(new Object[]{Commands.PRESENCE_RESYNC_REQUEST});
+            }
+            return;
+        }
+        presenceVersion = version;
+        Set<String> changed = new HashSet<>(Arrays.asList(offline));
+        changed.addAll(Arrays.asList(online)); //so users that are already listed are not added twice
+        ArrayList<String> activeUserList = mainPage.getActiveUsers();
+        synchronized (activeUserList) {
+            activeUserList.removeIf(changed::contains);
+            for (String user : online) {
+                if (!user.equals(currentUser.getUsername())) {
+                    activeUserList.add(user);
+                }
+            }
+            mainPage.getActiveUsersList().setListData(activeUserList.toArray()); //one refresh for the whole update
+        }
+    }
+
+    /**
+     * Updates the contact list with new contacts, sent by servers that do not version contact lists
      * @param newContacts The new contacts to add
      */
     public void updateContacts(LinkedList<String> newContacts) {
         ArrayList<Object> contacts = mainPage.getContacts();
         synchronized (contacts) {
+            Set<Object> known = new HashSet<>(contacts);
             for (String contact : newContacts) {
-                if (!contacts.contains(contact) && !contact.equals(currentUser.getUsername())) {
+                if (!contact.equals(currentUser.getUsername()) && known.add(contact)) {
                     contacts.add(contact);
                 }
             }
@@ -263,6 +399,56 @@ public class Client extends Thread {
         }
     }
 
+    /**
+     * Applies the changes to the contacts the server sent in answer to a sync request
+     * @param baseVersion the version the changes follow, 0 if they are the whole list
+     * @param version the version after the changes
+     * @param added contacts added
+     * @param removed contacts removed
+     */
+    private void applyContactSync(long baseVersion, long version, String[] added, String[] removed) {
+        contactSyncRequested = false;
+        contactBook.applySync(version, added, removed, baseVersion == 0);
+        showContacts();
+    }
+
+    /**
+     * Applies a contact that was added or removed, asks for a sync if a version was missed
+     * @param version the version after the change
+     * @param contact the contact
+     * @param added true if it was added, false if removed
+     */
+    private void applyContactChange(long version, String contact, boolean added) {
+        if (contactSyncRequested) {
+            return; //the sync answer covers it
+        }
+        if (contactBook.apply(version, contact, added)) {
+            showContacts();
+        } else {
+            requestContactSync();
+        }
+    }
+
+    /**
+     * Asks the server for the changes since the version of the saved contacts
+     */
+    private void requestContactSync() {
+        contactSyncRequested = true;
+        sendToStream(new Object[]{Commands.CONTACTS_SYNC_REQUEST, contactBook.getVersion()});
+    }
+
+    /**
+     * Shows the contacts of the contact book
+     */
+    private void showContacts() {
+        ArrayList<Object> contacts = mainPage.getContacts();
+        synchronized (contacts) {
+            contacts.clear();
+            contacts.addAll(contactBook.getContacts());
+            mainPage.getContactList().setListData(contacts.toArray());
+        }
+    }
+
     /**
      * Updates the chat view with a new message
      * @param message The message to display
@@ -306,21 +492,47 @@ public class Client extends Thread {
 
     /**
      * Sends a message to the server, which includes text, image, and other details
+     * A file is uploaded first in the background and the message is sent once the server has it,
+     * if the upload fails the message is sent with the image only
      * @param textMessage The text content of the message
-     * @param imageIcon An optional image attached to the message
+     * @param image An optional PNG image attached to the message, or null
+     * @param imageSize The width and height of the image
      * @param recipients The list of users to send the message to
      * @param filePath The file path of any attached image or file
      */
-    public void sendMessage(String textMessage, ImageIcon imageIcon, LinkedList<String> recipients, String filePath) {
-        Message message = new Message.Builder()
+    public void sendMessage(String textMessage, byte[] image, int imageSize, LinkedList<String> recipients, String filePath) {
+        Message.Builder builder = new Message.Builder()
                 .withText(textMessage)
-                .withImage(imageIcon)
                 .withSentBy(currentUser.getUsername())
                 .addRecipients(recipients)
                 .withSendTime(LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")))
-                .withImagePath(filePath)
-                .build();
-        sendToStream(new Object[]{Commands.SEND_MESSAGE_REQUEST, message});
+                .withImagePath(filePath);
+        if (image != null) {
+            builder.withImage(image, Message.PNG, imageSize, imageSize);
+        }
+        if (filePath == null || legacyProtocol) {
+            sendToStream(new Object[]{Commands.SEND_MESSAGE_REQUEST, builder.build()});
+            return;
+        }
+        Thread.ofVirtual().name("Upload " + filePath).start(() -> {
+            try {
+                builder.withAttachment(transfers.upload(Path.of(filePath)).join());
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "Could not upload " + filePath, e);
+            }
+            sendToStream(new Object[]{Commands.SEND_MESSAGE_REQUEST, builder.build()});
+        });
+    }
+
+    /**
+     * Downloads the file attached to a message, a download of it to the same file that stopped is continued
+     * @param attachment the hash of the file
+     * @param target where to write it
+     * @return completed with the target once it is written
+     * @throws IOException if a partial download cannot be read
+     */
+    public CompletableFuture<Path> downloadAttachment(String attachment, Path target) throws IOException {
+        return transfers.download(attachment, target);
     }
 
     /**
@@ -332,15 +544,12 @@ public class Client extends Thread {
     }
 
     /**
-     * Sends an object to the server via the output stream
-     * @param object The object to send
+     * Sends a command to the server over the connection
+     * @param object The command to send
      */
-    private void sendToStream(Object object) {
+    private void sendToStream(Object[] object) {
         try {
-            synchronized (outputStream) {
-                outputStream.writeObject(object);
-                outputStream.flush();
-            }
+            connection.write(object);
         } catch (IOException e) {
             logger.log(Level.SEVERE, "Could not send the object to the server", e);
         }
@@ -351,11 +560,10 @@ public class Client extends Thread {
      */
     public void closeAllConnections() {
         try {
-            if (outputStream != null) outputStream.close();
-            if (inputStream != null) inputStream.close();
-            if (socket != null) socket.close();
+            transfers.close();
+            if (connection != null) connection.close();
             if (mainPage != null) mainPage.logout();
-        } catch (IOException e) {
+        } catch (RuntimeException e) {
             logger.log(Level.SEVERE, "Error closing the client.", e);
         }
     }
@@ -0,0 +1,50 @@
+package Controller;
+
+import java.io.IOException;
+
+/**
+ * A connection between the server and a client over which commands are exchanged
+ * A command is an Object[] where the first element is the Commands value and the rest is the payload
+ */
+public interface ClientConnection {
+
+    /**
+     * Sends a command to the other side
+     * @param command the command to send
+     * @throws IOException if the command could not be written
+     */
+    void write(Object[] command) throws IOException;
+
+    /**
+     * Writes a command without flushing it, the command is sent by the next flush or write
+     * @param command the command to send
+     * @throws IOException if the command could not be written
+     */
+    void writeBuffered(Object[] command) throws IOException;
+
+    /**
+     * Writes a command that may already be encoded without flushing it
+     * Framed connections reuse the encoded bytes, the default writes the command itself
+     * @param command the command to send
+     * @throws IOException if the command could not be written
+     */
+    default void writeBuffered(EncodedCommand command) throws IOException {
+        writeBuffered(command.command());
+    }
+
+    /**
+     * Sends every command written with writeBuffered
+     * @throws IOException if the commands could not be sent
+     */
+    void flush() throws IOException;
+
+    /**
+     * Closes the connection, calling it more than once has no effect
+     */
+    void close();
+
+    /**
+     * @return true if the connection has not been closed
+     */
+    boolean isOpen();
+}
@@ -0,0 +1,426 @@
+package Controller;
+
+import Model.Commands;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Connects a Server to the other nodes of a cluster, so users on every node share one namespace
+ * Every node dials every peer in its config and sends over the links it dialed, and reads what the peers send over
+ * the links they dialed, all of them speak the framed wire protocol with the binary codec on the cluster port
+ * A link is only used once both sides said hello with the shared cluster secret, the secret travels in the clear,
+ * so the cluster port is bound to loopback unless a bind address on a private network is configured
+ * Sends go through a bounded queue per peer like client writes do, a peer that does not keep up is disconnected
+ * Messages still queued for a link that breaks are saved for their recipients, as if they were offline
+ * The presence directory is replicated, each node announces the users connected to it, all of them when a link comes up
+ * and then every login and logout, a node whose link breaks or that misses its heartbeats is dropped together with its users
+ * Commands for users on other nodes are forwarded to the node the directory names, one frame per node
+ */
+public class ClusterNode {
+    private static final Logger logger = Logger.getLogger(ClusterNode.class.getName());
+    private static final long HEARTBEAT_MILLIS = 1000;
+    private static final int MISSED_HEARTBEATS = 3; //a peer that stays silent this long is dropped
+    private static final long MAX_RECONNECT_MILLIS = 5000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final FrameCodec codec = new BinaryFrameCodec();
+
+    private final String nodeId;
+    private final Server server;
+    private final ServerConfig config;
+    private final String secret;
+    private final ServerSocket listener;
+    private final Map<String, Peer> members = new ConcurrentHashMap<>(); //node id -> link we send over, once the peer said hello
+    private final Map<String, Inbound> directory = new ConcurrentHashMap<>(); //username -> link of the node the user is connected to
+    private final ExecutorService threads = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("Cluster ", 0).factory());
+    private final LongAdder forwardedCount = new LongAdder();
+    private final LongAdder receivedCount = new LongAdder();
+    private final LongAdder failedForwardCount = new LongAdder();
+    private final LongAdder lostForwardCount = new LongAdder();
+    private final FlushStats flushStats = new FlushStats();
+    private volatile boolean running = true;
+
+    /**
+     * Listens on the cluster port and starts dialing the peers
+     * @param config the server config, with the node id, cluster port, bind address, secret and peers
+     * @param server the server the node belongs to
+     * @throws IOException if the cluster port cannot be opened
+     */
+    public ClusterNode(ServerConfig config, Server server) throws IOException {
+        this.nodeId = config.getNodeId();
+        this.server = server;
+        this.config = config;
+        this.secret = config.getClusterSecret();
+        InetAddress bindAddress = config.getClusterBindAddress() == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(config.getClusterBindAddress());
+        this.listener = new ServerSocket(config.getClusterPort(), 50, bindAddress);
+        threads.execute(this::acceptPeers);
+        for (InetSocketAddress peer : config.getClusterPeers()) {
+            threads.execute(() -> dial(peer));
+        }
+    }
+
+    /**
+     * @return the id of this node
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * @return ids of the other nodes this node can send to
+     */
+    public Set<String> getMembers() {
+        return Set.copyOf(members.keySet());
+    }
+
+    /**
+     * @param username the user
+     * @return the id of the other node the user is connected to, or null if the user is not on another node
+     */
+    public String nodeOf(String username) {
+        Inbound owner = directory.get(username);
+        return owner == null ? null : owner.peerId;
+    }
+
+    /**
+     * Tells the other nodes that a user connected to or disconnected from this node
+     * @param username the user
+     * @param online true for a login, false for a logout
+     */
+    public void announce(String username, boolean online) {
+        String[] users = {username};
+        String[] none = {};
+        Object[] command = {Commands.NODE_PRESENCE, online ? users : none, online ? none : users, 0L};
+        for (Peer peer : members.values()) {
+            peer.send(command);
+        }
+    }
+
+    /**
+     * Forwards a command to the users on other nodes, one frame per node
+     * @param command the command
+     * @param recipients the users that are not connected to this node
+     * @return the recipients that are on no other node or whose node could not be reached
+     */
+    public List<String> forward(EncodedCommand command, Collection<String> recipients) {
+        List<String> unreached = new ArrayList<>();
+        Map<String, List<String>> byNode = new HashMap<>();
+        for (String recipient : recipients) {
+            String node = nodeOf(recipient);
+            if (node == null) {
+                unreached.add(recipient);
+            } else {
+                byNode.computeIfAbsent(node, id -> new ArrayList<>()).add(recipient);
+            }
+        }
+        for (Map.Entry<String, List<String>> entry : byNode.entrySet()) {
+            Peer peer = members.get(entry.getKey());
+            boolean sent = false;
+            try {
+                sent = peer != null && peer.send(new Object[]{Commands.NODE_FORWARD, entry.getValue().toArray(String[]::new), command.frame(codec)});
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not encode a command for node " + entry.getKey() + "!", e);
+            }
+            if (sent) {
+                forwardedCount.increment();
+            } else {
+                failedForwardCount.increment();
+                unreached.addAll(entry.getValue());
+            }
+        }
+        return unreached;
+    }
+
+    /**
+     * Closes the cluster port and every link
+     */
+    public void shutdown() {
+        running = false;
+        try {
+            listener.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error closing the cluster port", e);
+        }
+        members.values().forEach(peer -> peer.queue.close());
+        threads.shutdownNow();
+    }
+
+    /**
+     * @return frames forwarded to other nodes
+     */
+    public long getForwardedCount() {
+        return forwardedCount.sum();
+    }
+
+    /**
+     * @return frames received from other nodes
+     */
+    public long getReceivedCount() {
+        return receivedCount.sum();
+    }
+
+    /**
+     * @return frames that could not be forwarded because the node was not reachable
+     */
+    public long getFailedForwardCount() {
+        return failedForwardCount.sum();
+    }
+
+    /**
+     * @param hello a command received as the first on a link
+     * @return true if it is a hello with the cluster secret
+     */
+    private boolean isTrustedHello(Object[] hello) {
+        return hello.length > 2 && hello[0] == Commands.NODE_HELLO && hello[1] instanceof String
+                && hello[2] instanceof String presented
+                && MessageDigest.isEqual(presented.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return queued forwards that were not written because their link broke, messages among them were saved
+     */
+    public long getLostForwardCount() {
+        return lostForwardCount.sum();
+    }
+
+    /**
+     * Keeps a link to one peer open, reconnecting with growing pauses while the peer is down
+     * @param address the cluster address of the peer
+     */
+    private void dial(InetSocketAddress address) {
+        long backoff = 100;
+        while (running) {
+            try (Socket socket = new Socket()) {
+                socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout((int) (HEARTBEAT_MILLIS * MISSED_HEARTBEATS));
+                BlockingConnection connection = WireProtocol.connect(socket, codec);
+                connection.write(new Object[]{Commands.NODE_HELLO, nodeId, secret});
+                Object[] hello = connection.read();
+                if (!isTrustedHello(hello)) {
+                    throw new IOException("Node at " + address + " did not present the cluster secret!");
+                }
+                String peerId = (String) hello[1];
+                if (peerId.equals(nodeId)) {
+                    return; //the peer list names this node too
+                }
+                Peer peer = new Peer(peerId, connection);
+                members.put(peerId, peer);
+                logger.log(Level.INFO, "Node " + nodeId + " joined node " + peerId + "!");
+                backoff = 100;
+                try {
+                    peer.sendSnapshot();
+                    while (running && peer.send(new Object[]{Commands.NODE_HEARTBEAT})) {
+                        Thread.sleep(HEARTBEAT_MILLIS);
+                    }
+                } finally {
+                    members.remove(peerId, peer);
+                    peer.queue.close();
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.FINE, "Node " + nodeId + " cannot reach " + address, e);
+            } catch (InterruptedException e) {
+                return; //shutting down
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(MAX_RECONNECT_MILLIS, backoff * 2);
+        }
+    }
+
+    /**
+     * Accepts the links other nodes dialed
+     */
+    private void acceptPeers() {
+        while (running) {
+            try {
+                Socket socket = listener.accept();
+                threads.execute(() -> new Inbound().read(socket));
+            } catch (IOException e) {
+                if (running) {
+                    logger.log(Level.WARNING, "Cluster port failed!", e);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * The link a peer sends over, this node only answers its hello
+     * Nothing but a hello with the cluster secret is handled until the peer sent one, anything else closes the link
+     * Users announced over the link belong to it, so a link that went away cannot drop the users a newer link announced
+     */
+    private class Inbound {
+        private volatile String peerId;
+
+        void read(Socket socket) {
+            try (socket) {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout((int) (HEARTBEAT_MILLIS * MISSED_HEARTBEATS));
+                BlockingConnection connection = WireProtocol.accept(socket, codec);
+                Object[] hello = connection.read();
+                if (!isTrustedHello(hello)) {
+                    logger.log(Level.WARNING, "Refused a cluster link from " + socket.getRemoteSocketAddress() + " without the cluster secret!");
+                    return;
+                }
+                peerId = (String) hello[1];
+                connection.write(new Object[]{Commands.NODE_HELLO, nodeId, secret});
+                while (running) {
+                    Object[] command = connection.read();
+                    switch ((Commands) command[0]) {
+                        case NODE_PRESENCE -> applyPresence((String[]) command[1], (String[]) command[2], (Long) command[3] != 0);
+                        case NODE_FORWARD -> {
+                            receivedCount.increment();
+                            server.deliverForwarded(codec.decode((byte[]) command[2]), (String[]) command[1]);
+                        }
+                        default -> {
+                            //heartbeat
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.FINE, "Link from node " + peerId + " closed", e);
+            } finally {
+                if (running) {
+                    dropUsers(Set.of()); //a node shutting down has no clients left to tell
+                }
+            }
+        }
+
+        /**
+         * Applies users announced by the peer
+         * @param online users that connected to the peer
+         * @param offline users that disconnected from it
+         * @param snapshot true if online holds every user of the peer and the others are gone
+         */
+        private void applyPresence(String[] online, String[] offline, boolean snapshot) {
+            if (snapshot) {
+                dropUsers(Set.of(online));
+            }
+            for (String user : online) {
+                Inbound previous = directory.put(user, this);
+                if (previous == null) {
+                    server.remotePresence(user, true);
+                }
+            }
+            for (String user : offline) {
+                if (directory.remove(user, this)) {
+                    server.remotePresence(user, false);
+                }
+            }
+        }
+
+        /**
+         * Removes the users announced over this link
+         * @param keep users to leave in place
+         */
+        private void dropUsers(Set<String> keep) {
+            Set<String> dropped = new HashSet<>();
+            directory.forEach((user, owner) -> {
+                if (owner == this && !keep.contains(user)) {
+                    dropped.add(user);
+                }
+            });
+            for (String user : dropped) {
+                if (directory.remove(user, this)) {
+                    server.remotePresence(user, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * The link this node sends to a peer over, senders only enqueue and a writer task drains the queue
+     */
+    private class Peer {
+        private final String peerId;
+        private final OutboundQueue queue;
+        private final ReentrantLock lock = new ReentrantLock(); //a snapshot is taken and queued before any later change
+
+        Peer(String peerId, BlockingConnection connection) {
+            this.peerId = peerId;
+            this.queue = new OutboundQueue(connection, threads, config, flushStats, this::overflowed, this::discarded);
+        }
+
+        /**
+         * Saves the messages that were queued for the peer when the link broke, the peer never got them
+         * @param commands the commands that were not written
+         */
+        private void discarded(List<EncodedCommand> commands) {
+            int lost = 0;
+            for (EncodedCommand command : commands) {
+                Object[] forward = command.command();
+                if (forward[0] != Commands.NODE_FORWARD) {
+                    continue; //presence is sent again with the snapshot of the next link
+                }
+                lost++;
+                try {
+                    server.deliverForwarded(codec.decode((byte[]) forward[2]), (String[]) forward[1]); //saved unless the user is here now
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Could not decode a forward lost on the link to node " + peerId + "!", e);
+                }
+            }
+            if (lost > 0) {
+                lostForwardCount.add(lost);
+                logger.log(Level.WARNING, lost + " forwards to node " + peerId + " were not sent before the link broke, messages were saved!");
+            }
+        }
+
+        /**
+         * Drops a peer whose queue overflowed, the dialer notices the closed link and connects again
+         */
+        private void overflowed() {
+            logger.log(Level.WARNING, "Node " + peerId + " does not keep up, dropping the link!");
+            members.remove(peerId, this);
+            queue.close();
+        }
+
+        /**
+         * Sends every user connected to this node
+         */
+        void sendSnapshot() {
+            lock.lock();
+            try {
+                send(new Object[]{Commands.NODE_PRESENCE, server.localUsers(), new String[0], 1L});
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Queues a command for the peer, applying the overflow policy if the queue is full
+         * @param command the command
+         * @return false if the link is broken, it is dialed again then
+         */
+        boolean send(Object[] command) {
+            lock.lock();
+            try {
+                return queue.send(command);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
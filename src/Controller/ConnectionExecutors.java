@@ -0,0 +1,58 @@
+package Controller;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executor that runs a ClientHandler per connection for the blocking transport
+ */
+public final class ConnectionExecutors {
+
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private ConnectionExecutors() {
+
+    }
+
+    /**
+     * Creates the connection executor selected in the config
+     * A BOUNDED executor rejects connections with a RejectedExecutionException once its threads and queue are full
+     * @param config the server config
+     * @return the executor
+     */
+    public static ExecutorService create(ServerConfig config) {
+        return switch (config.getConnectionExecutor()) {
+            case CACHED -> Executors.newCachedThreadPool(namedThreads("Client handler "));
+            case BOUNDED -> bounded(config.getMaxConnectionThreads(), config.getConnectionQueueCapacity());
+            case VIRTUAL -> Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("Client handler ", 0).factory());
+        };
+    }
+
+    /**
+     * Creates a fixed size platform thread pool with a bounded queue
+     * @param threads number of threads
+     * @param queueCapacity number of connections that may wait for a thread
+     * @return the executor
+     */
+    private static ExecutorService bounded(int threads, int queueCapacity) {
+        BlockingQueue<Runnable> queue = queueCapacity == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(queueCapacity);
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue, namedThreads("Client handler "));
+    }
+
+    /**
+     * @param prefix thread name prefix
+     * @return a factory for numbered platform threads
+     */
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return task -> new Thread(task, prefix + count.getAndIncrement());
+    }
+}
@@ -0,0 +1,627 @@
+package Controller;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of JDBC connections used by the DataBaseManager
+ * Callers get a connection with acquire and give it back by closing it, the physical connection stays open
+ * Statements created through a pooled connection are closed when it is given back
+ * Connections that sat idle are validated before they are handed out, connections that failed with a
+ * connection error are thrown away, and connections kept longer than the leak threshold are logged
+ * Connections above the minimum size are closed once they have been idle for the idle timeout
+ * Every physical connection keeps an LRU cache of prepared statements keyed by SQL, prepareStatement(sql)
+ * hands out a cached statement when there is one and closing it puts it back instead of closing it
+ */
+public class ConnectionPool {
+    private static final Logger logger = Logger.getLogger(ConnectionPool.class.getName());
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+    private static final long HOUSEKEEPING_PERIOD_MILLIS = 1000;
+
+    /**
+     * Opens physical connections
+     */
+    @FunctionalInterface
+    public interface ConnectionFactory {
+        Connection open() throws SQLException;
+    }
+
+    private final ConnectionFactory factory;
+    private final int minSize;
+    private final int maxSize;
+    private final long acquireTimeoutMillis;
+    private final long validationIntervalNanos;
+    private final long leakThresholdMillis;
+    private final long idleTimeoutNanos;
+    private final int statementCacheSize;
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Semaphore permits; //one permit per connection that may be borrowed
+    private final Map<Lease, Boolean> borrowed = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService housekeeper; //trims idle connections and detects leaks
+    private final AtomicInteger totalCount = new AtomicInteger();
+    private final LongAdder acquireCount = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder timeoutCount = new LongAdder();
+    private final LongAdder leakCount = new LongAdder();
+    private final LongAdder statementHits = new LongAdder();
+    private final LongAdder statementMisses = new LongAdder();
+    private final LongAdder statementEvictions = new LongAdder();
+
+    private ConnectionPool(Builder builder) {
+        this.factory = builder.factory;
+        this.minSize = builder.minSize;
+        this.maxSize = builder.maxSize;
+        this.acquireTimeoutMillis = builder.acquireTimeoutMillis;
+        this.validationIntervalNanos = TimeUnit.MILLISECONDS.toNanos(builder.validationIntervalMillis);
+        this.leakThresholdMillis = builder.leakThresholdMillis;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(builder.idleTimeoutMillis);
+        this.statementCacheSize = builder.statementCacheSize;
+        this.permits = new Semaphore(maxSize, true);
+        housekeeper = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("Connection pool housekeeper").daemon().factory());
+        long period = leakThresholdMillis > 0 ? Math.min(HOUSEKEEPING_PERIOD_MILLIS, Math.max(1, leakThresholdMillis / 2)) : HOUSEKEEPING_PERIOD_MILLIS;
+        housekeeper.scheduleAtFixedRate(() -> {
+            trimIdle();
+            detectLeaks();
+        }, period, period, TimeUnit.MILLISECONDS);
+        prefill();
+    }
+
+    /**
+     * Opens the minimum number of connections, a database that is down only gets logged
+     */
+    private void prefill() {
+        try {
+            while (totalCount.get() < minSize) {
+                idle.addLast(new PooledConnection(factory.open()));
+                totalCount.incrementAndGet();
+            }
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Could not prefill the connection pool: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Borrows a connection, waiting up to the acquisition timeout if all are in use
+     * @return the connection, close it to give it back
+     * @throws SQLException if no connection became available in time or a new one could not be opened
+     */
+    public Connection acquire() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeoutCount.increment();
+                throw new SQLException("Timed out after " + acquireTimeoutMillis + " ms waiting for a database connection!");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection!", e);
+        }
+        recordWait(System.nanoTime() - start);
+
+        try {
+            PooledConnection connection = takeIdle();
+            if (connection == null) {
+                connection = new PooledConnection(factory.open());
+                totalCount.incrementAndGet();
+            }
+            Lease lease = new Lease(connection);
+            borrowed.put(lease, Boolean.TRUE);
+            return lease.proxy;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes the most recently used idle connection that is still valid
+     * @return the connection or null if there is none
+     */
+    private PooledConnection takeIdle() {
+        PooledConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            if (System.nanoTime() - connection.lastUsed < validationIntervalNanos || isValid(connection)) {
+                return connection;
+            }
+            discard(connection);
+        }
+        return null;
+    }
+
+    private boolean isValid(PooledConnection connection) {
+        try {
+            return connection.physical.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Gives a connection back, called when the borrower closes it
+     * @param lease the borrowed connection
+     */
+    private void release(Lease lease) {
+        borrowed.remove(lease);
+        PooledConnection connection = lease.connection;
+        try {
+            if (lease.broken || connection.physical.isClosed()) {
+                discard(connection);
+                return;
+            }
+            if (!connection.physical.getAutoCommit()) {
+                connection.physical.rollback(); //do not hand an open transaction to the next borrower
+                connection.physical.setAutoCommit(true);
+            }
+            connection.lastUsed = System.nanoTime();
+            idle.addFirst(connection); //most recently used first so surplus connections go idle long enough to be validated
+        } catch (SQLException e) {
+            discard(connection);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void discard(PooledConnection connection) {
+        totalCount.decrementAndGet();
+        try {
+            connection.physical.close();
+        } catch (SQLException e) {
+            logger.log(Level.FINE, "Error closing a pooled connection", e);
+        }
+    }
+
+    private void recordWait(long nanos) {
+        acquireCount.increment();
+        waitNanos.add(nanos);
+        maxWaitNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Closes connections that have been idle for the idle timeout while the pool is above its minimum size
+     * The least recently used connections are at the end of the idle deque
+     */
+    private void trimIdle() {
+        PooledConnection connection;
+        while (totalCount.get() > minSize && (connection = idle.peekLast()) != null
+                && System.nanoTime() - connection.lastUsed > idleTimeoutNanos) {
+            if (idle.removeLastOccurrence(connection)) {
+                discard(connection);
+            }
+        }
+    }
+
+    /**
+     * Logs every connection that has been borrowed for longer than the leak threshold, once per borrow
+     */
+    private void detectLeaks() {
+        if (leakThresholdMillis == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (Lease lease : borrowed.keySet()) {
+            if (!lease.leakReported && TimeUnit.NANOSECONDS.toMillis(now - lease.borrowedAt) > leakThresholdMillis) {
+                lease.leakReported = true;
+                leakCount.increment();
+                logger.log(Level.WARNING, "Database connection borrowed for more than " + leakThresholdMillis + " ms, possible leak!", lease.borrowedBy);
+            }
+        }
+    }
+
+    /**
+     * Closes the idle connections and stops the housekeeping, borrowed connections are closed when given back
+     */
+    public void shutdown() {
+        housekeeper.shutdownNow();
+        PooledConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            discard(connection);
+        }
+    }
+
+    /**
+     * @return connections currently borrowed
+     */
+    public int getActiveCount() {
+        return borrowed.size();
+    }
+
+    /**
+     * @return connections waiting in the pool
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * @return open physical connections
+     */
+    public int getTotalCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * @return borrowed connections as a fraction of the maximum pool size
+     */
+    public double getUtilization() {
+        return (double) borrowed.size() / maxSize;
+    }
+
+    /**
+     * @return average time callers waited for a connection, in milliseconds
+     */
+    public double getAverageWaitMillis() {
+        long count = acquireCount.sum();
+        return count == 0 ? 0 : waitNanos.sum() / 1_000_000.0 / count;
+    }
+
+    /**
+     * @return longest time a caller waited for a connection, in milliseconds
+     */
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1_000_000.0;
+    }
+
+    /**
+     * @return how often a caller gave up waiting for a connection
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    /**
+     * @return how many borrows were reported as possible leaks
+     */
+    public long getLeakCount() {
+        return leakCount.sum();
+    }
+
+    /**
+     * @return prepared statements served from a statement cache
+     */
+    public long getStatementCacheHits() {
+        return statementHits.sum();
+    }
+
+    /**
+     * @return prepared statements that had to be prepared because they were not cached
+     */
+    public long getStatementCacheMisses() {
+        return statementMisses.sum();
+    }
+
+    /**
+     * @return cached statements closed to make room for others
+     */
+    public long getStatementCacheEvictions() {
+        return statementEvictions.sum();
+    }
+
+    /**
+     * A physical connection owned by the pool, with its statement cache
+     */
+    private class PooledConnection {
+        private final Connection physical;
+        private volatile long lastUsed = System.nanoTime();
+        //statements not in use, least recently returned first, a statement in use is taken out so nobody else gets it
+        private final LinkedHashMap<String, PreparedStatement> statementCache = new LinkedHashMap<>();
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+
+        /**
+         * Takes the cached statement for the SQL or prepares a new one
+         * @param sql the SQL
+         * @return the statement
+         * @throws SQLException if the statement could not be prepared
+         */
+        synchronized PreparedStatement takeStatement(String sql) throws SQLException {
+            PreparedStatement statement = statementCache.remove(sql);
+            if (statement != null) {
+                statementHits.increment();
+                return statement;
+            }
+            statementMisses.increment();
+            return physical.prepareStatement(sql);
+        }
+
+        /**
+         * Puts a statement back into the cache, evicting the least recently used one if the cache is full
+         * @param sql the SQL
+         * @param statement the statement
+         */
+        synchronized void returnStatement(String sql, PreparedStatement statement) {
+            try {
+                ResultSet open = statement.getResultSet();
+                if (open != null) {
+                    open.close();
+                }
+                statement.clearParameters();
+                statement.clearBatch();
+            } catch (SQLException e) {
+                close(statement); //not reusable
+                return;
+            }
+            PreparedStatement previous = statementCache.put(sql, statement);
+            if (previous != null) {
+                close(previous); //the same SQL was prepared twice in one borrow, keep one
+            }
+            if (statementCache.size() > statementCacheSize) {
+                Map.Entry<String, PreparedStatement> eldest = statementCache.entrySet().iterator().next();
+                statementCache.remove(eldest.getKey());
+                close(eldest.getValue());
+                statementEvictions.increment();
+            }
+        }
+
+        private void close(PreparedStatement statement) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                logger.log(Level.FINE, "Error closing a cached statement", e);
+            }
+        }
+    }
+
+    /**
+     * One borrow of a pooled connection, the borrower only sees the proxy
+     * Closing the proxy gives the connection back, using it afterwards fails
+     */
+    private class Lease implements InvocationHandler {
+        private final PooledConnection connection;
+        private final Connection proxy;
+        private final List<Statement> statements = new ArrayList<>(); //closed, or put back into the cache, on return
+        private final long borrowedAt = System.nanoTime();
+        private final Throwable borrowedBy; //where the connection was borrowed, for the leak report
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile boolean leakReported;
+        private volatile boolean broken;
+
+        Lease(PooledConnection connection) {
+            this.connection = connection;
+            this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, this);
+            this.borrowedBy = leakThresholdMillis > 0 ? new Throwable("Borrowed here") : null;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (closed.compareAndSet(false, true)) {
+                        closeStatements();
+                        release(this);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed.get() || connection.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled " + connection.physical;
+            }
+            if (closed.get()) {
+                throw new SQLException("Connection has already been returned to the pool!");
+            }
+            if (statementCacheSize > 0 && method.getName().equals("prepareStatement") && args.length == 1) {
+                try {
+                    PreparedStatement cached = new CachedStatement((String) args[0], connection.takeStatement((String) args[0])).proxy;
+                    statements.add(cached);
+                    return cached;
+                } catch (SQLException e) {
+                    if (isConnectionError(e)) {
+                        broken = true;
+                    }
+                    throw e;
+                }
+            }
+            try {
+                Object result = method.invoke(connection.physical, args);
+                if (result instanceof Statement statement) {
+                    statements.add(statement);
+                }
+                return result;
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (isConnectionError(cause)) {
+                    broken = true; //connection exception, the physical connection is not reused
+                }
+                throw cause;
+            }
+        }
+
+        private boolean isConnectionError(Throwable cause) {
+            return cause instanceof SQLException sqlException && sqlException.getSQLState() != null && sqlException.getSQLState().startsWith("08");
+        }
+
+        /**
+         * A statement from the cache, closing it puts it back
+         */
+        private class CachedStatement implements InvocationHandler {
+            private final String sql;
+            private final PreparedStatement statement;
+            private final PreparedStatement proxy;
+            private boolean returned;
+
+            CachedStatement(String sql, PreparedStatement statement) {
+                this.sql = sql;
+                this.statement = statement;
+                this.proxy = (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[]{PreparedStatement.class}, this);
+            }
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "close":
+                        if (!returned) {
+                            returned = true;
+                            connection.returnStatement(sql, statement);
+                        }
+                        return null;
+                    case "isClosed":
+                        return returned || statement.isClosed();
+                    case "getConnection":
+                        return Lease.this.proxy;
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "toString":
+                        return "Cached " + statement;
+                }
+                if (returned) {
+                    throw new SQLException("Statement has already been closed!");
+                }
+                try {
+                    return method.invoke(statement, args);
+                } catch (InvocationTargetException e) {
+                    if (isConnectionError(e.getCause())) {
+                        broken = true;
+                    }
+                    throw e.getCause();
+                }
+            }
+        }
+
+        private void closeStatements() {
+            for (Statement statement : statements) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    broken = true;
+                }
+            }
+            statements.clear();
+        }
+    }
+
+    /**
+     * Builder class for constructing a ConnectionPool
+     */
+    public static class Builder {
+        private final ConnectionFactory factory;
+        private int minSize = 2;
+        private int maxSize = 16;
+        private long acquireTimeoutMillis = 5000;
+        private long validationIntervalMillis = 5000;
+        private long leakThresholdMillis = 30000;
+        private long idleTimeoutMillis = 60000;
+        private int statementCacheSize = 32;
+
+        /**
+         * @param factory opens the physical connections
+         */
+        public Builder(ConnectionFactory factory) {
+            this.factory = factory;
+        }
+
+        /**
+         * Sets how many connections are opened up front and kept
+         * @param minSize the minimum size
+         * @return the Builder instance
+         */
+        public Builder withMinSize(int minSize) {
+            this.minSize = minSize;
+            return this;
+        }
+
+        /**
+         * Sets how many connections may be open at once
+         * @param maxSize the maximum size
+         * @return the Builder instance
+         */
+        public Builder withMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        /**
+         * Sets how long acquire waits for a connection
+         * @param acquireTimeoutMillis timeout in milliseconds
+         * @return the Builder instance
+         */
+        public Builder withAcquireTimeoutMillis(long acquireTimeoutMillis) {
+            this.acquireTimeoutMillis = acquireTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * Sets how long a connection may sit idle before it is validated again
+         * @param validationIntervalMillis interval in milliseconds
+         * @return the Builder instance
+         */
+        public Builder withValidationIntervalMillis(long validationIntervalMillis) {
+            this.validationIntervalMillis = validationIntervalMillis;
+            return this;
+        }
+
+        /**
+         * Sets how long a connection may be borrowed before it is reported as a possible leak
+         * @param leakThresholdMillis threshold in milliseconds, 0 turns leak detection off
+         * @return the Builder instance
+         */
+        public Builder withLeakThresholdMillis(long leakThresholdMillis) {
+            this.leakThresholdMillis = leakThresholdMillis;
+            return this;
+        }
+
+        /**
+         * Sets how long a connection above the minimum size may stay idle before it is closed
+         * @param idleTimeoutMillis timeout in milliseconds
+         * @return the Builder instance
+         */
+        public Builder withIdleTimeoutMillis(long idleTimeoutMillis) {
+            this.idleTimeoutMillis = idleTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * Sets how many prepared statements every connection keeps
+         * @param statementCacheSize cached statements per connection, 0 turns the cache off
+         * @return the Builder instance
+         */
+        public Builder withStatementCacheSize(int statementCacheSize) {
+            this.statementCacheSize = statementCacheSize;
+            return this;
+        }
+
+        /**
+         * Builds the pool and opens the minimum number of connections
+         * @return a new ConnectionPool instance
+         */
+        public ConnectionPool build() {
+            if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+                throw new IllegalArgumentException("Pool size must satisfy 0 <= min <= max and max > 0!");
+            }
+            if (acquireTimeoutMillis < 0 || validationIntervalMillis < 0 || leakThresholdMillis < 0 || idleTimeoutMillis < 0 || statementCacheSize < 0) {
+                throw new IllegalArgumentException("Pool timeouts cannot be negative!");
+            }
+            return new ConnectionPool(this);
+        }
+    }
+}
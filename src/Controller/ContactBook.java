@@ -0,0 +1,121 @@
+package Controller;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The client's copy of the user's contacts together with the version of the contact list it matches
+ * It is kept in a file between sessions, so at login the client only asks for what changed since that version
+ * The first line of the file is the version, every following line a contact
+ */
+public class ContactBook {
+    private static final Logger logger = Logger.getLogger(ContactBook.class.getName());
+    private final Path file;
+    private final Set<String> contacts = new LinkedHashSet<>();
+    private long version; //0 until the client has synchronized once
+
+    /**
+     * Loads the saved contacts of a user, an unreadable file is treated as no contacts
+     * @param directory directory the contact files are kept in
+     * @param username the user
+     */
+    public ContactBook(Path directory, String username) {
+        this.file = directory.resolve("contacts-" + username.replaceAll("[^A-Za-z0-9._-]", "_") + ".txt");
+        try {
+            if (Files.exists(file)) {
+                List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+                if (!lines.isEmpty()) {
+                    version = Long.parseLong(lines.getFirst().trim());
+                    contacts.addAll(lines.subList(1, lines.size()));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            logger.log(Level.WARNING, "Could not read the saved contacts, synchronizing all of them!", e);
+            version = 0;
+            contacts.clear();
+        }
+    }
+
+    /**
+     * @return the version of the contact list this copy matches
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the contacts in the order they were added
+     */
+    public synchronized List<String> getContacts() {
+        return new ArrayList<>(contacts);
+    }
+
+    /**
+     * Applies the changes sent in answer to a sync request
+     * @param version the version after the changes
+     * @param added contacts added, the whole list if full is set
+     * @param removed contacts removed
+     * @param full true if the list is replaced
+     */
+    public synchronized void applySync(long version, String[] added, String[] removed, boolean full) {
+        if (full) {
+            contacts.clear();
+        }
+        for (String contact : removed) {
+            contacts.remove(contact);
+        }
+        contacts.addAll(List.of(added));
+        this.version = version;
+        save();
+    }
+
+    /**
+     * Applies a single change if it follows the version this copy has
+     * @param version the version after the change
+     * @param contact the contact
+     * @param added true if it was added, false if removed
+     * @return false if a version was missed and the client has to synchronize
+     */
+    public synchronized boolean apply(long version, String contact, boolean added) {
+        if (version <= this.version) {
+            return true; //already part of the copy
+        }
+        if (version != this.version + 1) {
+            return false;
+        }
+        if (added) {
+            contacts.add(contact);
+        } else {
+            contacts.remove(contact);
+        }
+        this.version = version;
+        save();
+        return true;
+    }
+
+    /**
+     * Writes the copy to a temporary file and moves it over the old one
+     */
+    private void save() {
+        List<String> lines = new ArrayList<>(contacts.size() + 1);
+        lines.add(Long.toString(version));
+        lines.addAll(contacts);
+        try {
+            Files.createDirectories(file.getParent());
+            Path temp = Files.createTempFile(file.getParent(), "contacts", ".tmp");
+            Files.write(temp, lines, StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not save the contacts!", e); //the next login synchronizes from the old version
+        }
+    }
+}
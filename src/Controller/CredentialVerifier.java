@@ -0,0 +1,191 @@
+package Controller;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs password derivation and verification on a few dedicated threads, so a flood of logins uses at most
+ * those threads and cannot take the CPU away from the threads that relay messages
+ * Waiting work is run by priority, logins before registrations before upgrades of old passwords
+ * Admission is capped, once the threads are busy and the queue is full new work is rejected and the client
+ * is told when to try again
+ */
+public class CredentialVerifier {
+
+    /**
+     * What the work is for, in the order it is run
+     */
+    public enum Priority {
+        LOGIN,
+        REGISTRATION,
+        REDERIVE
+    }
+
+    private static final long MIN_RETRY_AFTER_MILLIS = 250;
+    private static final long MAX_RETRY_AFTER_MILLIS = 30_000;
+
+    private final ThreadPoolExecutor executor;
+    private final int threads;
+    private final int maxPending; //running and queued
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong(); //keeps the order of arrival within a priority
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder queueWaitNanos = new LongAdder();
+    private final LongAccumulator maxQueueWaitNanos = new LongAccumulator(Long::max, 0);
+    private final LongAdder hashNanos = new LongAdder();
+
+    /**
+     * @param threads threads that derive and verify passwords
+     * @param queueCapacity work that may wait for a thread before new work is rejected
+     */
+    public CredentialVerifier(int threads, int queueCapacity) {
+        this.threads = threads;
+        this.maxPending = threads + queueCapacity;
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), task -> {
+            Thread thread = new Thread(task, "Credentials " + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.prestartAllCoreThreads(); //every task goes through the queue, so it is ordered by priority
+    }
+
+    /**
+     * Queues work unless too much is waiting already
+     * @param priority what the work is for
+     * @param work the work, e.g. a password check
+     * @return completed with the result of the work
+     * @throws RejectedExecutionException if the verifier is saturated or shut down, see getRetryAfterMillis
+     */
+    public <T> CompletableFuture<T> submit(Priority priority, Callable<T> work) {
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            rejected.increment();
+            throw new RejectedExecutionException("Too many credentials are being verified!");
+        }
+        Task<T> task = new Task<>(priority, sequence.getAndIncrement(), work);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            pending.decrementAndGet();
+            throw e;
+        }
+        admitted.increment();
+        return task.result;
+    }
+
+    /**
+     * Estimates when a rejected client should try again, from the work waiting and the time a check takes
+     * A random part keeps rejected clients from coming back at the same moment
+     * @return milliseconds to wait
+     */
+    public long getRetryAfterMillis() {
+        double drainMillis = getAverageHashMillis() * pending.get() / threads;
+        long retryAfter = Math.max(MIN_RETRY_AFTER_MILLIS, (long) drainMillis);
+        retryAfter += ThreadLocalRandom.current().nextLong(retryAfter / 2 + 1);
+        return Math.min(MAX_RETRY_AFTER_MILLIS, retryAfter);
+    }
+
+    /**
+     * Stops the threads, queued work is failed
+     */
+    public void shutdown() {
+        for (Runnable task : executor.shutdownNow()) {
+            ((Task<?>) task).result.completeExceptionally(new RejectedExecutionException("Server is shutting down!"));
+        }
+    }
+
+    /**
+     * @return work running or waiting
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * @return work accepted
+     */
+    public long getAdmittedCount() {
+        return admitted.sum();
+    }
+
+    /**
+     * @return work rejected because the verifier was saturated
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return average time work waited for a thread, in milliseconds
+     */
+    public double getAverageQueueWaitMillis() {
+        long count = completed.sum();
+        return count == 0 ? 0 : queueWaitNanos.sum() / 1_000_000.0 / count;
+    }
+
+    /**
+     * @return longest time work waited for a thread, in milliseconds
+     */
+    public double getMaxQueueWaitMillis() {
+        return maxQueueWaitNanos.get() / 1_000_000.0;
+    }
+
+    /**
+     * @return average time to derive or verify a password, in milliseconds
+     */
+    public double getAverageHashMillis() {
+        long count = completed.sum();
+        return count == 0 ? 0 : hashNanos.sum() / 1_000_000.0 / count;
+    }
+
+    /**
+     * Queued work, ordered by priority and then by arrival
+     */
+    private class Task<T> implements Runnable, Comparable<Task<?>> {
+        private final Priority priority;
+        private final long sequence;
+        private final Callable<T> work;
+        private final long queuedAt = System.nanoTime();
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        Task(Priority priority, long sequence, Callable<T> work) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.work = work;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            queueWaitNanos.add(start - queuedAt);
+            maxQueueWaitNanos.accumulate(start - queuedAt);
+            try {
+                result.complete(work.call());
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            } finally {
+                hashNanos.add(System.nanoTime() - start);
+                completed.increment();
+                pending.decrementAndGet();
+            }
+        }
+
+        @Override
+        public int compareTo(Task<?> other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+}
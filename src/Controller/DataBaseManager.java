@@ -1,14 +1,13 @@
 package Controller;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.file.Path;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 
 public class DataBaseManager {
 
@@ -21,22 +20,58 @@ public class DataBaseManager {
     private static final String PASSWORD = "DATABASE_PASSWORD";
 
     //SQL query strings
-    private static final String CREATE_USERS_SQL = "INSERT INTO users (username, firstname, lastname, password, profile_image) VALUES ( ?, ?, ?, ?, ?)";
-    private static final String CREATE_CONTACT = "INSERT INTO saved_contacts (username, contact) VALUES ( ?, ?)";
-    private static final String CREATE_CHAT = "INSERT INTO saved_chats (timestamp, sender, receiver, message, image) VALUES (CURRENT_TIMESTAMP, ?, ?, ?, ?)";
-    private static final String DELETE_SAVED_CHATS = "DELETE FROM saved_chats WHERE receiver = ?";
-    private static final String GET_USER_INFO = "SELECT * FROM users WHERE username = ?";
-    private static final String GET_CONTACTS = "SELECT * FROM saved_contacts WHERE username = ?";
-    private static final String GET_SAVED_CHAT = "SELECT * FROM saved_chats WHERE receiver = ?";
-    private static final String VERIFY_USER_SQL = "SELECT * FROM users WHERE username = ? AND password = ?";
-    private static final String REGISTER_CONTACT_SQL = "SELECT * FROM saved_contacts WHERE user = ?;";
+    private static final String CREATE_USERS_SQL = "INSERT INTO users (username, firstname, lastname, password, profile_image_hash) VALUES ( ?, ?, ?, ?, ?)";
+    private static final String BUMP_CONTACTS_VERSION = "UPDATE users SET contacts_version = contacts_version + 1 WHERE username = ? RETURNING contacts_version";
+    private static final String CREATE_CONTACT = "INSERT INTO saved_contacts (username, contact, version) VALUES (?, ?, ?) ON CONFLICT (username, contact) DO UPDATE SET version = EXCLUDED.version, removed = FALSE WHERE saved_contacts.removed";
+    private static final String REMOVE_CONTACT = "UPDATE saved_contacts SET removed = TRUE, version = ? WHERE username = ? AND contact = ? AND NOT removed";
+    private static final String GET_CONTACT_CHANGES = "SELECT u.contacts_version, c.contact, c.removed FROM users u LEFT JOIN saved_contacts c ON c.username = u.username AND c.version > ? WHERE u.username = ? ORDER BY c.version";
+    private static final String LOCK_SAVED_MESSAGES = "SELECT id FROM saved_messages WHERE id = ANY(?) ORDER BY id FOR UPDATE";
+    private static final String DELETE_PENDING = "DELETE FROM pending_deliveries WHERE receiver = ? AND message_id = ANY(?)";
+    private static final String DELETE_DELIVERED_MESSAGES = "DELETE FROM saved_messages m WHERE m.id = ANY(?) AND NOT EXISTS (SELECT 1 FROM pending_deliveries d WHERE d.message_id = m.id) RETURNING m.image_hash";
+    private static final String UPDATE_PASSWORD = "UPDATE users SET password = ? WHERE username = ? AND password = ?";
+    private static final String GET_USER_PROFILE = "SELECT username, firstname, lastname, password, profile_image_hash FROM users WHERE username = ?";
+    private static final String GET_CONTACTS = "SELECT username, contact FROM saved_contacts WHERE username = ? AND NOT removed";
+    private static final String GET_SAVED_CHAT_PAGE = "SELECT d.message_id, m.timestamp, m.sender, d.receiver, m.message, m.image_hash, a.size AS image_size FROM pending_deliveries d JOIN saved_messages m ON m.id = d.message_id LEFT JOIN attachments a ON a.hash = m.image_hash WHERE d.receiver = ? AND d.message_id > ? ORDER BY d.message_id LIMIT ?";
+    private static final int SAVED_CHAT_FETCH_SIZE = 8; //rows the driver holds in memory at a time
     private static final String REGISTER_USER_SQL = "SELECT * FROM users WHERE username = ?;";
 
+    private final ConnectionPool pool;
+    private final AttachmentStore attachments;
+    private final SavedChatWriter savedChatWriter;
+    private final UserProfileCache profiles;
+
     /**
      * Private constructor to prevent instantiation
+     * Creates the connection pool, sized by system properties
+     * The driver prepares a statement on the server once it has run prepareThreshold times,
+     * the statement cache keeps the statements alive so the hot ones stay prepared
      */
     private DataBaseManager() {
-
+        Properties connectionProperties = new Properties();
+        connectionProperties.setProperty("user", USERNAME);
+        connectionProperties.setProperty("password", PASSWORD);
+        connectionProperties.setProperty("prepareThreshold", Integer.toString(Integer.getInteger("messenger.db.prepareThreshold", 1)));
+        pool = new ConnectionPool.Builder(() -> DriverManager.getConnection(DATABASE_URL, connectionProperties))
+                .withMinSize(Integer.getInteger("messenger.db.poolMin", 2))
+                .withMaxSize(Integer.getInteger("messenger.db.poolMax", 16))
+                .withAcquireTimeoutMillis(Long.getLong("messenger.db.acquireTimeoutMillis", 5000))
+                .withLeakThresholdMillis(Long.getLong("messenger.db.leakThresholdMillis", 30000))
+                .withStatementCacheSize(Integer.getInteger("messenger.db.statementCacheSize", 32))
+                .build();
+        try {
+            attachments = new AttachmentStore(Path.of(System.getProperty("messenger.attachmentDir", "attachments")), pool);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        savedChatWriter = new SavedChatWriter(pool, attachments,
+                Integer.getInteger("messenger.db.savedChatBatchSize", 100),
+                Long.getLong("messenger.db.savedChatFlushMillis", 10),
+                Integer.getInteger("messenger.db.savedChatQueueCapacity", 10000),
+                SavedChatWriter.Durability.valueOf(System.getProperty("messenger.db.savedChatDurability", "COMMIT").toUpperCase()));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> savedChatWriter.close(5000))); //write what is still queued
+        profiles = new UserProfileCache(this::loadUserProfile,
+                Integer.getInteger("messenger.db.profileCacheSize", 10000),
+                Long.getLong("messenger.db.profileCacheTtlMillis", 300000));
     }
 
     /**
@@ -55,44 +90,184 @@ public class DataBaseManager {
     }
 
     /**
-     * Establish and return a database connection
+     * Borrow a database connection from the pool, closing it gives it back
      * @return Connection instance
      */
     public Connection getDatabaseConnection() {
         try {
-            return DriverManager.getConnection(DATABASE_URL, USERNAME, PASSWORD);
+            return pool.acquire();
         } catch (SQLException e) {
             System.out.println("Could not establish a database connection: " + e.getMessage());
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * @return the connection pool, for its metrics
+     */
+    public ConnectionPool getConnectionPool() {
+        return pool;
+    }
+
+    /**
+     * @return the store images are kept in
+     */
+    public AttachmentStore getAttachmentStore() {
+        return attachments;
+    }
+
+    /**
+     * @return the write-behind queue of saved chats, for its metrics
+     */
+    public SavedChatWriter getSavedChatWriter() {
+        return savedChatWriter;
+    }
+
+    /**
+     * @return the cache of user profiles, for its metrics
+     */
+    public UserProfileCache getProfileCache() {
+        return profiles;
+    }
+
+    /**
+     * The contacts of a user that changed after a version
+     * @param version the version of the contact list now
+     * @param added contacts added since
+     * @param removed contacts removed since
+     * @param full true if added is the whole list, the client has to drop what it has
+     */
+    public record ContactChanges(long version, List<String> added, List<String> removed, boolean full) {
+    }
+
     /**
      * Registers a new contact in the database
      * @param username the user
      * @param contact contact the user decided to save
      * @return true if everything went okay, if not, return false
      */
-    public synchronized boolean registerContact(String username, String contact) {
-        try (Connection con = getDatabaseConnection()) {
-            PreparedStatement usernameStmt = con.prepareStatement(REGISTER_CONTACT_SQL);
-            usernameStmt.setString(1, username);
-            ResultSet usernameRs = usernameStmt.executeQuery();
+    public boolean registerContact(String username, String contact) {
+        return addContact(username, contact) > 0;
+    }
 
-            if (!usernameRs.next()) { //contact does not exist for user
-                PreparedStatement preparedStatement = con.prepareStatement(CREATE_CONTACT);
-                preparedStatement.setString(1, username);
-                preparedStatement.setString(2, contact);
-                preparedStatement.executeUpdate();
-                System.out.println("Registered contact for user: " + username);
-                return true;
-            } else {
-                System.out.println("Error! This contact already exists for the user");
+    /**
+     * Adds a contact and bumps the version of the user's contact list
+     * @param username the user
+     * @param contact contact the user decided to save
+     * @return the new version of the contact list, or -1 if it was a contact already or could not be added
+     */
+    public long addContact(String username, String contact) {
+        return changeContacts(username, contact, CREATE_CONTACT);
+    }
+
+    /**
+     * Removes a contact and bumps the version of the user's contact list
+     * The row stays as a tombstone so clients that synchronize later learn about the removal
+     * @param username the user
+     * @param contact the contact to remove
+     * @return the new version of the contact list, or -1 if it was not a contact or could not be removed
+     */
+    public long removeContact(String username, String contact) {
+        return changeContacts(username, contact, REMOVE_CONTACT);
+    }
+
+    /**
+     * Bumps the contact list version and writes the change with it in one transaction
+     * The version row is locked until the commit, so changes of one user get consecutive versions
+     * @param username the user
+     * @param contact the contact
+     * @param sql CREATE_CONTACT or REMOVE_CONTACT
+     * @return the new version, or -1 if nothing changed
+     */
+    private long changeContacts(String username, String contact, String sql) {
+        try (Connection con = getDatabaseConnection()) {
+            con.setAutoCommit(false);
+            try {
+                long version;
+                try (PreparedStatement preparedStatement = con.prepareStatement(BUMP_CONTACTS_VERSION)) {
+                    preparedStatement.setString(1, username);
+                    try (ResultSet rs = preparedStatement.executeQuery()) {
+                        if (!rs.next()) {
+                            con.rollback();
+                            return -1; //no such user
+                        }
+                        version = rs.getLong(1);
+                    }
+                }
+                int changed;
+                try (PreparedStatement preparedStatement = con.prepareStatement(sql)) {
+                    if (sql.equals(CREATE_CONTACT)) {
+                        preparedStatement.setString(1, username);
+                        preparedStatement.setString(2, contact);
+                        preparedStatement.setLong(3, version);
+                    } else {
+                        preparedStatement.setLong(1, version);
+                        preparedStatement.setString(2, username);
+                        preparedStatement.setString(3, contact);
+                    }
+                    changed = preparedStatement.executeUpdate();
+                }
+                if (changed == 0) {
+                    con.rollback(); //the version stays as it was
+                    return -1;
+                }
+                con.commit();
+                return version;
+            } catch (SQLException e) {
+                con.rollback();
+                throw e;
             }
         } catch (RuntimeException | SQLException e) {
-            System.out.println("Contact could not be registered in the database!");
+            System.out.println("Contact could not be changed in the database!");
+        }
+        return -1;
+    }
+
+    /**
+     * Fetches what changed in a user's contacts after the version the client has
+     * A client with version 0, or a version the database does not know, gets the whole list
+     * @param username the user
+     * @param sinceVersion the version the client has
+     * @return the changes, or null if there is no such user or the database could not be read
+     */
+    public ContactChanges getContactChanges(String username, long sinceVersion) {
+        try (Connection con = getDatabaseConnection()) {
+            ContactChanges changes = readContactChanges(con, username, sinceVersion);
+            if (changes != null && changes.version() < sinceVersion) {
+                changes = readContactChanges(con, username, 0); //the client is ahead of the database, start over
+            }
+            return changes;
+        } catch (SQLException e) {
+            System.out.println("Something went wrong fetching contacts from database!");
+            return null;
+        }
+    }
+
+    private ContactChanges readContactChanges(Connection con, String username, long sinceVersion) throws SQLException {
+        try (PreparedStatement preparedStatement = con.prepareStatement(GET_CONTACT_CHANGES)) {
+            preparedStatement.setLong(1, sinceVersion);
+            preparedStatement.setString(2, username);
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                long version = -1;
+                List<String> added = new ArrayList<>();
+                List<String> removed = new ArrayList<>();
+                while (rs.next()) {
+                    version = rs.getLong(1);
+                    String contact = rs.getString(2);
+                    if (contact == null) {
+                        continue; //no changes, only the version row
+                    }
+                    if (rs.getBoolean(3)) {
+                        if (sinceVersion > 0) {
+                            removed.add(contact);
+                        }
+                    } else {
+                        added.add(contact);
+                    }
+                }
+                return version < 0 ? null : new ContactChanges(version, added, removed, sinceVersion == 0);
+            }
         }
-        return false;
     }
 
     /**
@@ -118,16 +293,24 @@ public class DataBaseManager {
                 preparedStatement.setString(4, password);
 
                 //store the profile image
+                String imageHash = null;
                 if (imagePath != null) {
-                    File imageFile = new File(imagePath);
-                    InputStream fis = new FileInputStream(imageFile);
-                    preparedStatement.setBinaryStream(5, fis, (int) imageFile.length());
+                    imageHash = attachments.store(Path.of(imagePath));
+                    preparedStatement.setString(5, imageHash);
                 } else {
-                    preparedStatement.setNull(5, Types.BLOB);
+                    preparedStatement.setNull(5, Types.VARCHAR);
                     System.out.println("No image provided");
                 }
 
-                preparedStatement.executeUpdate();
+                try {
+                    preparedStatement.executeUpdate();
+                } catch (SQLException e) {
+                    if (imageHash != null) {
+                        attachments.release(imageHash); //the user was not created
+                    }
+                    throw e;
+                }
+                profiles.invalidate(username);
                 System.out.println("User registered with username: " + username);
                 return true;
             } else {
@@ -140,53 +323,121 @@ public class DataBaseManager {
     }
 
     /**
-     * Method that fetches all info from the database for a certain user
+     * Method that fetches all info for a certain user, from the profile cache if it is there
      * @param username user
      * @return a list of maps
      */
     public List<Map<String, Object>> getAdditionalUserInfo(String username) {
         List<Map<String, Object>> resultList = new ArrayList<>();
+        UserProfileCache.Profile profile = profiles.get(username);
+        if (profile != null) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("username", profile.username());
+            row.put("firstname", profile.firstName());
+            row.put("lastname", profile.lastName());
+            row.put("password", profile.password());
+            row.put("image_hash", profile.imageHash());
+            resultList.add(row);
+        }
+        return resultList;
+    }
+
+    /**
+     * Gets the profile of a user, from the cache if it is there
+     * @param username the user
+     * @return the profile, or null if there is no such user
+     */
+    public UserProfileCache.Profile getUserProfile(String username) {
+        return profiles.get(username);
+    }
+
+    /**
+     * Drops the cached profile of a user, call it whenever the profile changes
+     * @param username the user
+     */
+    public void invalidateUserProfile(String username) {
+        profiles.invalidate(username);
+    }
+
+    /**
+     * Replaces the stored form of a password, unless it was changed in the meantime
+     * @param username the user
+     * @param oldPassword the stored form that was verified
+     * @param newPassword the new stored form
+     */
+    public void updatePassword(String username, String oldPassword, String newPassword) {
         try (Connection con = getDatabaseConnection();
-             PreparedStatement preparedStatement = con.prepareStatement(GET_USER_INFO)) {
-            preparedStatement.setString(1, username);
+             PreparedStatement preparedStatement = con.prepareStatement(UPDATE_PASSWORD)) {
+            preparedStatement.setString(1, newPassword);
+            preparedStatement.setString(2, username);
+            preparedStatement.setString(3, oldPassword);
+            preparedStatement.executeUpdate();
+        } catch (SQLException e) {
+            System.out.println("Could not update the password of " + username);
+        } finally {
+            profiles.invalidate(username);
+        }
+    }
 
+    /**
+     * Loads a profile for the cache
+     * @param username the user
+     * @return the profile, or null if there is no such user
+     */
+    private UserProfileCache.Profile loadUserProfile(String username) {
+        try (Connection con = getDatabaseConnection();
+             PreparedStatement preparedStatement = con.prepareStatement(GET_USER_PROFILE)) {
+            preparedStatement.setString(1, username);
             try (ResultSet rs = preparedStatement.executeQuery()) {
-                while (rs.next()) {
-                    Map<String, Object> row = new HashMap<>();
-                    row.put("username", rs.getString("username"));
-                    row.put("firstname", rs.getString("firstname"));
-                    row.put("lastname", rs.getString("lastname"));
-                    row.put("password", rs.getString("password"));
-                    row.put("image", rs.getBytes("profile_image"));
-                    resultList.add(row);
+                if (!rs.next()) {
+                    return null;
                 }
+                return new UserProfileCache.Profile(rs.getString("username"), rs.getString("firstname"), rs.getString("lastname"),
+                        rs.getString("password"), rs.getString("profile_image_hash"));
             }
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
-        return resultList;
     }
 
     /**
-     * Fetches all saved chats for a user
+     * Fetches the next page of saved chats for a user, oldest first
+     * Rows are streamed from the database and reading stops as soon as the page is full
      * @param username the user
-     * @return a list of maps contains saved chats
+     * @param afterId only chats with a larger id are fetched, 0 for the first page
+     * @param maxMessages most chats in the page
+     * @param maxBytes text and image bytes after which the page is closed, the first chat is always included
+     * @return a list of maps contains saved chats, empty if there are no more
      */
-    public List<Map<String, Object>> fetchSavedChats(String username) {
+    public List<Map<String, Object>> fetchSavedChatPage(String username, long afterId, int maxMessages, long maxBytes) {
         List<Map<String, Object>> chats = new ArrayList<>();
-        try (Connection con = getDatabaseConnection();
-             PreparedStatement preparedStatement = con.prepareStatement(GET_SAVED_CHAT)) {
-            preparedStatement.setString(1, username);
-            try (ResultSet rs = preparedStatement.executeQuery()) {
-                while (rs.next()) {
-                    Map<String, Object> chat = new HashMap<>();
-                    chat.put("timestamp", rs.getTimestamp("timestamp"));
-                    chat.put("sender", rs.getString("sender"));
-                    chat.put("receiver", rs.getString("receiver"));
-                    chat.put("message", rs.getString("message"));
-                    chat.put("image", rs.getBytes("image"));
-                    chats.add(chat);
+        if (afterId == 0) {
+            savedChatWriter.awaitWritten(); //once per login, chats saved before it may still be queued and would be missed
+        }
+        try (Connection con = getDatabaseConnection()) {
+            con.setAutoCommit(false); //the driver only uses a cursor inside a transaction
+            try (PreparedStatement preparedStatement = con.prepareStatement(GET_SAVED_CHAT_PAGE)) {
+                preparedStatement.setFetchSize(Math.min(maxMessages, SAVED_CHAT_FETCH_SIZE));
+                preparedStatement.setString(1, username);
+                preparedStatement.setLong(2, afterId);
+                preparedStatement.setInt(3, maxMessages);
+                long bytes = 0;
+                try (ResultSet rs = preparedStatement.executeQuery()) {
+                    while (bytes < maxBytes && rs.next()) {
+                        Map<String, Object> chat = new HashMap<>();
+                        chat.put("id", rs.getLong("message_id"));
+                        chat.put("timestamp", rs.getTimestamp("timestamp"));
+                        chat.put("sender", rs.getString("sender"));
+                        chat.put("receiver", rs.getString("receiver"));
+                        String text = rs.getString("message");
+                        chat.put("message", text);
+                        chat.put("image_hash", rs.getString("image_hash"));
+                        chats.add(chat);
+                        bytes += (text == null ? 0 : text.length()) + rs.getLong("image_size"); //a message may only have an image
+                    }
                 }
+            } finally {
+                con.commit();
             }
         } catch (SQLException e) {
             System.out.println("No saved chats!");
@@ -195,14 +446,46 @@ public class DataBaseManager {
     }
 
     /**
-     * Removes all saved chats for a certain user
+     * Removes delivered saved chats of a certain user
+     * Messages nobody else is waiting for are deleted with them
      * @param user the user
+     * @param ids ids of the delivered chats
      */
-    public void removeSavedChats(String user) {
-        try (Connection connection = getDatabaseConnection();
-             PreparedStatement preparedStatement = connection.prepareStatement(DELETE_SAVED_CHATS)) {
-            preparedStatement.setString(1, user);
-            preparedStatement.executeUpdate();
+    public void removeSavedChats(String user, List<Long> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        try (Connection connection = getDatabaseConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                Array idArray = connection.createArrayOf("bigint", ids.toArray());
+                //lock the messages first, so two receivers of the same message cannot both leave it behind
+                try (PreparedStatement preparedStatement = connection.prepareStatement(LOCK_SAVED_MESSAGES)) {
+                    preparedStatement.setArray(1, idArray);
+                    preparedStatement.executeQuery().close();
+                }
+                try (PreparedStatement preparedStatement = connection.prepareStatement(DELETE_PENDING)) {
+                    preparedStatement.setString(1, user);
+                    preparedStatement.setArray(2, idArray);
+                    preparedStatement.executeUpdate();
+                }
+                List<String> imageHashes = new ArrayList<>();
+                try (PreparedStatement preparedStatement = connection.prepareStatement(DELETE_DELIVERED_MESSAGES)) {
+                    preparedStatement.setArray(1, idArray);
+                    try (ResultSet rs = preparedStatement.executeQuery()) {
+                        while (rs.next()) {
+                            if (rs.getString(1) != null) {
+                                imageHashes.add(rs.getString(1));
+                            }
+                        }
+                    }
+                }
+                connection.commit();
+                imageHashes.forEach(attachments::release); //images of the deleted messages
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
         } catch (SQLException e) {
             System.out.println("No chats!");
         }
@@ -234,51 +517,41 @@ public class DataBaseManager {
 
 
     /**
-     * Checks if the user exists in the database
+     * Checks if the user exists and the password is right, against the cached profile if there is one
      * @param username the username
      * @param password the password
      * @return true if the user exists, otherwise return false
      */
     public boolean verifyUser(String username, String password) {
-        try (Connection connection = getDatabaseConnection();
-             PreparedStatement preparedStatement = connection.prepareStatement(VERIFY_USER_SQL)) {
-            preparedStatement.setString(1, username);
-            preparedStatement.setString(2, password);
-
-            try (ResultSet resultSet = preparedStatement.executeQuery()) {
-                return resultSet.next();
-            }
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
+        UserProfileCache.Profile profile = profiles.get(username);
+        return profile != null && profile.hasPassword(password);
     }
 
     /**
-     * Saves a message in the database for users that are online
+     * Saves a message in the database for users that are offline
      * @param sender the sender of the message
      * @param receiver the receiver
      * @param message the message
-     * @param imagePath the image
+     * @param imageHash the uploaded image, or null
+     * @param imageData the image sent with the message, or null
      */
-    public void saveChat(String sender, String receiver, String message, String imagePath) {
-        try (Connection con = getDatabaseConnection();
-             PreparedStatement preparedStatement = con.prepareStatement(CREATE_CHAT)) {
-            preparedStatement.setString(1, sender);
-            preparedStatement.setString(2, receiver);
-            preparedStatement.setString(3, message);
-
-            if (imagePath != null) {
-                File imageFile = new File(imagePath);
-                InputStream fis = new FileInputStream(imageFile);
-                preparedStatement.setBinaryStream(4, fis, (int) imageFile.length());
-            } else {
-                preparedStatement.setBinaryStream(4, null);
-                System.out.println("No image provided!");
-            }
+    public void saveChat(String sender, String receiver, String message, String imageHash, byte[] imageData) {
+        saveChats(sender, List.of(receiver), message, imageHash, imageData);
+    }
 
-            preparedStatement.executeUpdate();
-            System.out.println("Chat saved successfully");
-        } catch (IOException | SQLException e) {
+    /**
+     * Saves a message in the database for all its offline receivers
+     * The rows are written in a batch together with other queued messages, in COMMIT mode this waits for the commit
+     * @param sender the sender of the message
+     * @param receivers the offline receivers
+     * @param message the message
+     * @param imageHash the uploaded image, or null
+     * @param imageData the image sent with the message, or null
+     */
+    public void saveChats(String sender, List<String> receivers, String message, String imageHash, byte[] imageData) {
+        try {
+            savedChatWriter.save(sender, receivers, message, imageHash, imageData);
+        } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
@@ -0,0 +1,49 @@
+package Controller;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A command together with its encoded frames, so a command sent to many clients is encoded once per codec
+ * instead of once per recipient
+ * Frame codecs are stateless, the encoded bytes are shared by every connection and must never be modified
+ * Object stream connections cannot share bytes and write the command itself
+ */
+public final class EncodedCommand {
+    private final Object[] command;
+    private final AtomicReferenceArray<byte[]> frames = new AtomicReferenceArray<>(WireProtocol.MAX_CODEC_ID + 1); //indexed by codec id
+
+    /**
+     * @param command the command, it must not be changed once the EncodedCommand is created
+     */
+    public EncodedCommand(Object[] command) {
+        this.command = command;
+    }
+
+    /**
+     * @return the command
+     */
+    public Object[] command() {
+        return command;
+    }
+
+    /**
+     * Returns the command encoded by the codec, encoding it on the first call for that codec
+     * @param codec the codec
+     * @return the frame payload, shared and read only
+     * @throws IOException if the command cannot be encoded
+     */
+    public byte[] frame(FrameCodec codec) throws IOException {
+        byte[] frame = frames.get(codec.id());
+        if (frame == null) {
+            synchronized (this) { //the first writer encodes, the others wait for its bytes
+                frame = frames.get(codec.id());
+                if (frame == null) {
+                    frame = codec.encode(command);
+                    frames.set(codec.id(), frame);
+                }
+            }
+        }
+        return frame;
+    }
+}
@@ -1,16 +1,29 @@
 package Controller;
 
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Utility class for encrypting passwords
+ * The client hashes the password with MD5 before sending it, the server stores that hash once more
+ * derived with PBKDF2, as "pbkdf2$iterations$salt$key" with salt and key in Base64
  */
 public class Encryptor {
     private static final Logger logger = Logger.getLogger(Encryptor.class.getName());
+    private static final String PBKDF2_PREFIX = "pbkdf2$";
+    private static final String PBKDF2_ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int KEY_BITS = 256;
+    private static final SecureRandom random = new SecureRandom();
 
     /**
      * Encrypts a password using MD5 hashing
@@ -28,4 +41,70 @@ public class Encryptor {
             throw new RuntimeException();
         }
     }
+
+    /**
+     * Derives the form a password is stored in, deliberately slow
+     * @param password the password hash sent by the client
+     * @param iterations PBKDF2 iterations
+     * @return the stored form with a new random salt
+     */
+    public static String derivePassword(String password, int iterations) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        return PBKDF2_PREFIX + iterations + "$" + base64.encodeToString(salt) + "$" + base64.encodeToString(pbkdf2(password, salt, iterations));
+    }
+
+    /**
+     * Checks a password against its stored form in constant time
+     * Passwords stored before PBKDF2 was used are the plain client hash and are compared as they are
+     * @param password the password hash sent by the client
+     * @param stored the stored form
+     * @return true if they match
+     */
+    public static boolean matchesPassword(String password, String stored) {
+        if (password == null || stored == null) {
+            return false;
+        }
+        if (!stored.startsWith(PBKDF2_PREFIX)) {
+            return MessageDigest.isEqual(stored.getBytes(StandardCharsets.UTF_8), password.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] parts = stored.split("\\$");
+        try {
+            Base64.Decoder base64 = Base64.getDecoder();
+            byte[] key = pbkdf2(password, base64.decode(parts[2]), Integer.parseInt(parts[1]));
+            return MessageDigest.isEqual(base64.decode(parts[3]), key);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Stored password is malformed!", e);
+            return false;
+        }
+    }
+
+    /**
+     * @param stored the stored form of a password
+     * @param iterations the iterations passwords are derived with now
+     * @return true if the password should be derived again, because it predates PBKDF2 or used fewer iterations
+     */
+    public static boolean needsRederive(String stored, int iterations) {
+        if (stored == null || !stored.startsWith(PBKDF2_PREFIX)) {
+            return true;
+        }
+        String[] parts = stored.split("\\$");
+        try {
+            return Integer.parseInt(parts[1]) < iterations;
+        } catch (RuntimeException e) {
+            return true;
+        }
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, KEY_BITS);
+        try {
+            return SecretKeyFactory.getInstance(PBKDF2_ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Hashing algorithm not found", e); //every JVM has PBKDF2WithHmacSHA256
+        } finally {
+            spec.clearPassword();
+        }
+    }
 }
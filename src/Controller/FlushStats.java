@@ -0,0 +1,43 @@
+package Controller;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the frames and flushes of all outbound queues of a server
+ * Frames per flush shows how well writes are coalesced, 1 means every command cost its own flush
+ */
+public class FlushStats {
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+
+    /**
+     * Records one flush
+     * @param frameCount number of frames sent by the flush
+     */
+    void record(int frameCount) {
+        frames.add(frameCount);
+        flushes.increment();
+    }
+
+    /**
+     * @return total frames written
+     */
+    public long getFrames() {
+        return frames.sum();
+    }
+
+    /**
+     * @return total flushes
+     */
+    public long getFlushes() {
+        return flushes.sum();
+    }
+
+    /**
+     * @return average frames per flush, 0 if nothing was flushed yet
+     */
+    public double getFramesPerFlush() {
+        long flushCount = flushes.sum();
+        return flushCount == 0 ? 0 : (double) frames.sum() / flushCount;
+    }
+}
@@ -0,0 +1,31 @@
+package Controller;
+
+import java.io.IOException;
+
+/**
+ * Turns commands into frame payloads and back
+ * Implementations must be stateless so one instance can be shared by all connections
+ */
+public interface FrameCodec {
+
+    /**
+     * @return the id sent in the handshake to select this codec
+     */
+    byte id();
+
+    /**
+     * Encodes a command into a frame payload
+     * @param command the command
+     * @return the payload bytes
+     * @throws IOException if the command cannot be encoded
+     */
+    byte[] encode(Object[] command) throws IOException;
+
+    /**
+     * Decodes a frame payload into a command
+     * @param frame the payload bytes
+     * @return the command
+     * @throws IOException if the payload is malformed
+     */
+    Object[] decode(byte[] frame) throws IOException;
+}
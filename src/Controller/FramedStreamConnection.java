@@ -0,0 +1,101 @@
+package Controller;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Blocking connection that exchanges length-prefixed frames encoded by a FrameCodec
+ */
+public class FramedStreamConnection implements BlockingConnection {
+    private static final Logger logger = Logger.getLogger(FramedStreamConnection.class.getName());
+    private final Socket socket;
+    private final ReentrantLock writeLock = new ReentrantLock(); //a lock instead of synchronized so virtual threads do not pin while writing
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final FrameCodec codec;
+
+    /**
+     * Creates the connection once the handshake is done, see WireProtocol
+     * @param socket the socket
+     * @param in the input stream
+     * @param out the output stream
+     * @param codec the negotiated codec
+     */
+    FramedStreamConnection(Socket socket, DataInputStream in, DataOutputStream out, FrameCodec codec) {
+        this.socket = socket;
+        this.in = in;
+        this.out = out;
+        this.codec = codec;
+    }
+
+    @Override
+    public Object[] read() throws IOException {
+        int length = in.readInt();
+        WireProtocol.checkFrameLength(length);
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return codec.decode(frame);
+    }
+
+    @Override
+    public void write(Object[] command) throws IOException {
+        byte[] frame = codec.encode(command);
+        writeLock.lock();
+        try {
+            out.writeInt(frame.length);
+            out.write(frame);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void writeBuffered(Object[] command) throws IOException {
+        writeFrame(codec.encode(command));
+    }
+
+    @Override
+    public void writeBuffered(EncodedCommand command) throws IOException {
+        writeFrame(command.frame(codec));
+    }
+
+    private void writeFrame(byte[] frame) throws IOException {
+        writeLock.lock();
+        try {
+            out.writeInt(frame.length);
+            out.write(frame);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeLock.lock();
+        try {
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error closing the socket", e);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !socket.isClosed();
+    }
+}
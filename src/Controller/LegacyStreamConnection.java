@@ -0,0 +1,170 @@
+package Controller;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Connection that exchanges commands as Object[] over one ObjectOutputStream/ObjectInputStream pair
+ * This is the original protocol and is kept for clients that do not send a handshake
+ * The output stream is reset according to a StreamResetPolicy so neither side's handle table grows without bound
+ */
+public class LegacyStreamConnection implements BlockingConnection {
+    private static final Logger logger = Logger.getLogger(LegacyStreamConnection.class.getName());
+    private final Socket socket;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final CountingOutputStream counter;
+    private final ObjectOutputStream oos;
+    private final ObjectInputStream ois;
+    private final StreamResetPolicy resetPolicy;
+    private volatile long bytesAtReset; //bytes written before the last reset
+    private int objectsSinceReset;
+    private volatile int resetCount;
+
+    /**
+     * Initializes the object streams for the socket with the reset policy given by system properties
+     * @param socket the socket
+     * @param in the input stream to read from, may already be buffered
+     * @throws IOException if the streams could not be created
+     */
+    public LegacyStreamConnection(Socket socket, InputStream in) throws IOException {
+        this(socket, in, StreamResetPolicy.fromSystemProperties());
+    }
+
+    /**
+     * Initializes the object streams for the socket
+     * @param socket the socket
+     * @param in the input stream to read from, may already be buffered
+     * @param resetPolicy decides when the output stream is reset
+     * @throws IOException if the streams could not be created
+     */
+    public LegacyStreamConnection(Socket socket, InputStream in, StreamResetPolicy resetPolicy) throws IOException {
+        this.socket = socket;
+        this.resetPolicy = resetPolicy;
+        this.counter = new CountingOutputStream(new BufferedOutputStream(socket.getOutputStream())); //object streams write an object in many small pieces
+        this.oos = new ObjectOutputStream(counter);
+        this.oos.flush(); //send the stream header so the other side can open its input stream
+        this.ois = new ObjectInputStream(in);
+    }
+
+    @Override
+    public Object[] read() throws IOException {
+        try {
+            while (true) {
+                Object object = ois.readObject();
+                if (object instanceof Object[] command) {
+                    return command;
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Received an unknown class!", e);
+        }
+    }
+
+    @Override
+    public void write(Object[] command) throws IOException {
+        writeLock.lock();
+        try {
+            writeBuffered(command);
+            oos.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void writeBuffered(Object[] command) throws IOException {
+        writeLock.lock();
+        try {
+            oos.writeObject(command);
+            objectsSinceReset++;
+            if (resetPolicy.shouldReset(counter.count - bytesAtReset, objectsSinceReset)) {
+                oos.reset(); //forget every written object, the reading side does the same when it reads the reset marker
+                bytesAtReset = counter.count;
+                objectsSinceReset = 0;
+                resetCount++;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeLock.lock();
+        try {
+            oos.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            oos.close();
+            ois.close();
+            socket.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error closing the object streams", e);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    /**
+     * @return total bytes written to the socket
+     */
+    public long getBytesWritten() {
+        return counter.count;
+    }
+
+    /**
+     * Bytes written since the last reset, the objects they encode are still referenced by both streams
+     * @return retained bytes
+     */
+    public long getRetainedBytes() {
+        return counter.count - bytesAtReset;
+    }
+
+    /**
+     * @return how many times the output stream was reset
+     */
+    public int getResetCount() {
+        return resetCount;
+    }
+
+    /**
+     * Output stream that counts the bytes written through it
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private volatile long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
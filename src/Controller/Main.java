@@ -9,6 +9,7 @@ public class Main {
     public static void main(String[] args) {
         //initialize server and clients
         Server server = new Server();
+        server.start();
 
         //initialize login views for each client
         LoginView loginView1 = new LoginView(new ViewController());
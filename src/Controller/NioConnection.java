@@ -0,0 +1,480 @@
+package Controller;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking connection served by a NioEventLoop
+ * Socket IO happens on the loop thread, decoded commands are handed to the ClientHandler on a worker thread
+ * An idle connection keeps no read buffer, bytes are only retained while a frame is incomplete
+ * Writers wait once too many bytes are waiting for the socket, like a blocking socket whose send buffer is full
+ * Reading pauses once too many frames are waiting for the handler, so a client that sends faster than it is served
+ * fills its socket buffer instead of the server's memory
+ */
+public class NioConnection implements ClientConnection {
+    private static final Logger logger = Logger.getLogger(NioConnection.class.getName());
+    private static final long MAX_PENDING_BYTES = 1024 * 1024;
+    private static final int MAX_INBOUND_FRAMES = 128; //frames waiting for the handler before reading pauses
+    private final SocketChannel channel;
+    private final NioEventLoop loop;
+    private final Executor inbound; //runs the handler, one command at a time
+    private final NioServerEngine engine;
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicInteger inboundFrames = new AtomicInteger(); //frames read but not handled yet
+    private final AtomicBoolean readPaused = new AtomicBoolean();
+    private final ReentrantLock pendingLock = new ReentrantLock();
+    private final Condition drained = pendingLock.newCondition();
+    private final ReentrantLock batchLock = new ReentrantLock();
+    private final List<byte[]> batch = new ArrayList<>(); //frames written but not flushed yet
+    private int batchLength;
+    private volatile boolean writerWaiting;
+    private SelectionKey key;
+    private ByteBuffer partial; //unconsumed bytes in read mode, null when there are none
+    private volatile FrameCodec codec; //null until the handshake is done
+    private Server.ClientHandler handler;
+
+    /**
+     * @param channel the accepted channel
+     * @param loop the loop that serves the channel
+     * @param inbound executor that runs the handler for this connection
+     * @param engine the engine that creates the handler once the handshake is done
+     */
+    public NioConnection(SocketChannel channel, NioEventLoop loop, Executor inbound, NioServerEngine engine) {
+        this.channel = channel;
+        this.loop = loop;
+        this.inbound = inbound;
+        this.engine = engine;
+    }
+
+    /**
+     * Registers the channel for reading, runs on the loop thread
+     * @param selector the loop's selector
+     */
+    void register(Selector selector) {
+        try {
+            channel.configureBlocking(false);
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not register the connection!", e);
+            close();
+        }
+    }
+
+    /**
+     * Reads what is available and dispatches complete frames, runs on the loop thread
+     * @param readBuffer the loop's shared read buffer
+     */
+    void onReadable(ByteBuffer readBuffer) {
+        readBuffer.clear();
+        try {
+            if (channel.read(readBuffer) < 0) {
+                disconnected();
+                return;
+            }
+            readBuffer.flip();
+
+            ByteBuffer in = readBuffer;
+            if (partial != null) {
+                partial = append(partial, readBuffer);
+                in = partial;
+            }
+            if (codec == null && isLegacyClient(in)) {
+                handOffLegacyClient(in);
+                return;
+            }
+            if (codec == null && !readHandshake(in)) {
+                keepRemaining(in);
+                return;
+            }
+            readFrames(in);
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Client disconnected or sent invalid data", e);
+            disconnected();
+        }
+    }
+
+    /**
+     * Dispatches complete frames until the buffer runs out or reading pauses, and keeps the rest
+     * @param in buffer in read mode
+     * @throws IOException if a frame length is invalid
+     */
+    private void readFrames(ByteBuffer in) throws IOException {
+        while (!readPaused.get() && readFrame(in)) {
+            //keep reading frames until the buffer runs out
+        }
+        keepRemaining(in);
+    }
+
+    /**
+     * Reads and answers the handshake
+     * @param in buffer in read mode
+     * @return true if the handshake is complete
+     * @throws IOException if the handshake is invalid
+     */
+    private boolean readHandshake(ByteBuffer in) throws IOException {
+        if (in.remaining() < WireProtocol.HANDSHAKE_LENGTH) {
+            return false;
+        }
+        byte[] handshake = new byte[WireProtocol.HANDSHAKE_LENGTH];
+        in.get(handshake);
+        FrameCodec requested = WireProtocol.parseHandshake(handshake);
+        if (requested == null) {
+            channel.write(ByteBuffer.wrap(WireProtocol.handshake(WireProtocol.REJECTED)));
+            throw new IOException("Client sent an invalid handshake!");
+        }
+        enqueue(ByteBuffer.wrap(WireProtocol.handshake(requested.id())));
+        codec = requested;
+        handler = engine.createHandler(this);
+        return true;
+    }
+
+    /**
+     * @param in buffer in read mode
+     * @return true if the client started with an ObjectOutputStream header instead of a handshake
+     */
+    private boolean isLegacyClient(ByteBuffer in) {
+        return in.remaining() >= 2 && WireProtocol.isLegacyHeader(in.get(in.position()), in.get(in.position() + 1));
+    }
+
+    /**
+     * Stops serving the channel from the event loop and hands it to a blocking handler
+     * Object streams cannot be framed without parsing them, so these clients get a thread of their own
+     * @param in buffer in read mode holding everything read so far
+     */
+    private void handOffLegacyClient(ByteBuffer in) {
+        byte[] received = new byte[in.remaining()];
+        in.get(received);
+        partial = null;
+        closed.set(true); //the loop must not touch the channel anymore
+        loop.deregister(key, () -> engine.handOffLegacyClient(channel, received));
+    }
+
+    /**
+     * Reads one frame if it is complete and hands it to the handler
+     * @param in buffer in read mode
+     * @return true if a frame was read
+     * @throws IOException if the frame length is invalid
+     */
+    private boolean readFrame(ByteBuffer in) throws IOException {
+        if (in.remaining() < WireProtocol.FRAME_HEADER_LENGTH) {
+            return false;
+        }
+        int length = in.getInt(in.position());
+        WireProtocol.checkFrameLength(length);
+        if (in.remaining() < WireProtocol.FRAME_HEADER_LENGTH + length) {
+            return false;
+        }
+        in.position(in.position() + WireProtocol.FRAME_HEADER_LENGTH);
+        byte[] frame = new byte[length];
+        in.get(frame);
+        if (inboundFrames.incrementAndGet() > MAX_INBOUND_FRAMES) {
+            pauseReading();
+        }
+        inbound.execute(() -> dispatch(frame));
+        return true;
+    }
+
+    /**
+     * Decodes a frame and passes it to the handler, runs on a worker thread
+     * @param frame the frame payload
+     */
+    private void dispatch(byte[] frame) {
+        try {
+            if (!closed.get()) {
+                handler.handle(codec.decode(frame));
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Received a malformed frame, closing the connection!", e);
+            disconnected();
+        } finally {
+            if (inboundFrames.decrementAndGet() <= MAX_INBOUND_FRAMES / 2 && readPaused.get()) {
+                loop.execute(this::resumeReading);
+            }
+        }
+    }
+
+    /**
+     * Stops reading until the handler caught up, frames already read stay buffered, runs on the loop thread
+     */
+    private void pauseReading() {
+        if (readPaused.compareAndSet(false, true)) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            if (inboundFrames.get() <= MAX_INBOUND_FRAMES / 2) {
+                loop.execute(this::resumeReading); //the handler caught up before it could see the pause
+            }
+        }
+    }
+
+    /**
+     * Dispatches the buffered frames and reads again once the handler caught up, runs on the loop thread
+     */
+    private void resumeReading() {
+        if (inboundFrames.get() > MAX_INBOUND_FRAMES / 2 || !readPaused.compareAndSet(true, false) || closed.get() || !key.isValid()) {
+            return; //paused again since the task was queued, the handler schedules another one
+        }
+        try {
+            if (partial != null) {
+                readFrames(partial);
+            }
+            if (!readPaused.get()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Client sent invalid data", e);
+            disconnected();
+        }
+    }
+
+    /**
+     * Keeps the unconsumed bytes of the buffer until more data arrives
+     * The buffer is sized for the whole pending frame so large frames are copied only once
+     * @param in buffer in read mode
+     */
+    private void keepRemaining(ByteBuffer in) {
+        int size = Math.max(in.remaining(), expectedLength(in));
+        if (!in.hasRemaining()) {
+            partial = null;
+        } else if (in != partial || in.capacity() > 2 * size) { //do not hold on to the buffer of a large frame
+            ByteBuffer copy = ByteBuffer.allocate(size);
+            copy.put(in);
+            copy.flip();
+            partial = copy;
+        }
+    }
+
+    /**
+     * @param in buffer in read mode
+     * @return the number of bytes needed for the next frame, or 0 if the header is incomplete
+     */
+    private int expectedLength(ByteBuffer in) {
+        if (codec == null || in.remaining() < WireProtocol.FRAME_HEADER_LENGTH) {
+            return 0;
+        }
+        int length = in.getInt(in.position());
+        return length < 0 || length > WireProtocol.MAX_FRAME_LENGTH ? 0 : WireProtocol.FRAME_HEADER_LENGTH + length;
+    }
+
+    /**
+     * Appends newly read bytes to the pending bytes
+     * @param pending pending bytes in read mode
+     * @param data new bytes in read mode
+     * @return buffer in read mode holding both
+     */
+    private ByteBuffer append(ByteBuffer pending, ByteBuffer data) {
+        int needed = pending.remaining() + data.remaining();
+        if (pending.capacity() < needed) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(needed, Math.max(expectedLength(pending), pending.capacity() * 2)));
+            bigger.put(pending);
+            pending = bigger;
+        } else if (pending.position() > 0) {
+            pending.compact();
+        } else {
+            pending.position(pending.limit());
+            pending.limit(pending.capacity());
+        }
+        pending.put(data);
+        pending.flip();
+        return pending;
+    }
+
+    @Override
+    public void write(Object[] command) throws IOException {
+        batchLock.lock();
+        try {
+            writeBuffered(command);
+            flush();
+        } finally {
+            batchLock.unlock();
+        }
+    }
+
+    @Override
+    public void writeBuffered(Object[] command) throws IOException {
+        writeFrame(codec.encode(command));
+    }
+
+    @Override
+    public void writeBuffered(EncodedCommand command) throws IOException {
+        writeFrame(command.frame(codec));
+    }
+
+    /**
+     * Adds a frame to the batch, the frame may be shared with other connections and is only read
+     * @param frame the frame payload
+     * @throws IOException if the connection is closed
+     */
+    private void writeFrame(byte[] frame) throws IOException {
+        if (closed.get()) {
+            throw new ClosedChannelException();
+        }
+        batchLock.lock();
+        try {
+            batch.add(frame);
+            batchLength += WireProtocol.FRAME_HEADER_LENGTH + frame.length;
+        } finally {
+            batchLock.unlock();
+        }
+    }
+
+    /**
+     * Copies the batched frames into one buffer and hands it to the loop, so they go out in one socket write
+     * @throws IOException if the connection is closed
+     */
+    @Override
+    public void flush() throws IOException {
+        batchLock.lock();
+        try {
+            if (batch.isEmpty()) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(batchLength);
+            for (byte[] frame : batch) {
+                buffer.putInt(frame.length).put(frame);
+            }
+            buffer.flip();
+            batch.clear();
+            batchLength = 0;
+            awaitCapacity(); //under the lock so batches are queued in the order they were written
+            enqueue(buffer);
+        } finally {
+            batchLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the loop has written enough of the pending bytes, never called on the loop thread
+     * @throws IOException if the connection is closed or the thread is interrupted while waiting
+     */
+    private void awaitCapacity() throws IOException {
+        if (pendingBytes.get() <= MAX_PENDING_BYTES) {
+            return;
+        }
+        pendingLock.lock();
+        try {
+            writerWaiting = true;
+            while (pendingBytes.get() > MAX_PENDING_BYTES) {
+                if (closed.get()) {
+                    throw new ClosedChannelException();
+                }
+                drained.await(100, TimeUnit.MILLISECONDS); //wakes up now and then to notice a close
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to write!", e);
+        } finally {
+            writerWaiting = false;
+            pendingLock.unlock();
+        }
+    }
+
+    /**
+     * Wakes up a writer waiting in awaitCapacity once the pending bytes are below the limit, runs on the loop thread
+     */
+    private void signalCapacity() {
+        if (writerWaiting && pendingBytes.get() <= MAX_PENDING_BYTES) {
+            pendingLock.lock();
+            try {
+                drained.signalAll();
+            } finally {
+                pendingLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Queues bytes for writing and makes sure the loop flushes them
+     * @param buffer bytes to write
+     */
+    private void enqueue(ByteBuffer buffer) {
+        pendingBytes.addAndGet(buffer.remaining());
+        outbound.add(buffer);
+        if (loop.inEventLoop()) {
+            writeOutbound();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                flushScheduled.set(false);
+                writeOutbound();
+            });
+        }
+    }
+
+    /**
+     * Writes queued bytes until the socket buffer is full, runs on the loop thread
+     */
+    private void writeOutbound() {
+        if (closed.get()) {
+            return;
+        }
+        try {
+            ByteBuffer buffer;
+            while ((buffer = outbound.peek()) != null) {
+                pendingBytes.addAndGet(-channel.write(buffer));
+                if (buffer.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE); //wait until the socket can take more
+                    signalCapacity();
+                    return;
+                }
+                outbound.poll();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            signalCapacity();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Could not write to the client", e);
+            disconnected();
+        }
+    }
+
+    /**
+     * Called when the socket can take more bytes, runs on the loop thread
+     */
+    void onWritable() {
+        writeOutbound();
+    }
+
+    /**
+     * Closes the connection after the client went away and lets the handler clean up
+     */
+    private void disconnected() {
+        close();
+        if (handler != null) {
+            inbound.execute(handler::connectionClosed);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Error closing the channel", e);
+            }
+            outbound.clear();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed.get();
+    }
+}
@@ -0,0 +1,152 @@
+package Controller;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A selector thread that performs all socket reads and writes for the connections registered with it
+ * Work from other threads is handed over through a task queue, the loop never blocks on anything but select
+ */
+public class NioEventLoop extends Thread {
+    private static final Logger logger = Logger.getLogger(NioEventLoop.class.getName());
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE); //shared by all connections of this loop
+    private volatile boolean running = true;
+
+    /**
+     * Opens the selector, the engine starts the loop once it is constructed
+     * @param name thread name
+     * @throws IOException if the selector could not be opened
+     */
+    public NioEventLoop(String name) throws IOException {
+        super(name);
+        selector = Selector.open();
+    }
+
+    /**
+     * Registers a connection with this loop
+     * @param connection the connection
+     */
+    public void register(NioConnection connection) {
+        execute(() -> connection.register(selector));
+    }
+
+    /**
+     * Removes a channel from the selector, the task runs once the channel can be switched back to blocking mode
+     * @param key the channel's key
+     * @param then task to run afterwards on the loop thread
+     */
+    public void deregister(SelectionKey key, Runnable then) {
+        key.cancel();
+        execute(() -> {
+            try {
+                selector.selectNow(); //flushes the cancelled key
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Selector failed!", e);
+            }
+            then.run();
+        });
+    }
+
+    /**
+     * Runs a task on the loop thread
+     * @param task the task
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * @return true if called from this loop's thread
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == this;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                processSelectedKeys();
+                runTasks(); //after the keys, so tasks queued while processing them do not wait for the next select
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Selector failed!", e);
+            }
+        }
+        closeAll();
+    }
+
+    /**
+     * Runs all tasks handed over by other threads
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Event loop task failed!", e);
+            }
+        }
+    }
+
+    /**
+     * Dispatches ready keys to their connections
+     */
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            NioConnection connection = (NioConnection) key.attachment();
+            try {
+                if (key.isValid() && key.isReadable()) {
+                    connection.onReadable(readBuffer);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.onWritable();
+                }
+            } catch (CancelledKeyException e) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Closes every connection of this loop and the selector
+     */
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof NioConnection connection) {
+                connection.close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error closing the selector", e);
+        }
+    }
+
+    /**
+     * Stops the loop and closes its connections
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+}
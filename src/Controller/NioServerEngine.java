@@ -0,0 +1,135 @@
+package Controller;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Selector based transport for the Server
+ * Accepted channels are spread round-robin over a fixed set of event loops,
+ * client requests run on a bounded worker pool so database calls never block a selector
+ */
+public class NioServerEngine {
+    private static final Logger logger = Logger.getLogger(NioServerEngine.class.getName());
+    private static final int ACCEPT_BACKLOG = 1024;
+    private final ServerSocketChannel serverChannel;
+    private final boolean tcpNoDelay;
+    private final NioEventLoop[] loops;
+    private final ExecutorService workers;
+    private final Function<ClientConnection, Server.ClientHandler> handlerFactory;
+    private final BiFunction<Socket, InputStream, Runnable> legacyHandlerFactory;
+    private final ExecutorService legacyExecutor;
+    private int nextLoop;
+
+    /**
+     * Binds the server channel and starts the event loops
+     * @param config server config
+     * @param handlerFactory creates a ClientHandler for a new connection
+     * @param legacyHandlerFactory creates a blocking handler for object stream clients, given the socket and its input
+     * @param legacyExecutor runs the blocking handlers
+     * @throws IOException if the port could not be bound
+     */
+    public NioServerEngine(ServerConfig config, Function<ClientConnection, Server.ClientHandler> handlerFactory,
+                           BiFunction<Socket, InputStream, Runnable> legacyHandlerFactory, ExecutorService legacyExecutor) throws IOException {
+        this.handlerFactory = handlerFactory;
+        this.legacyHandlerFactory = legacyHandlerFactory;
+        this.legacyExecutor = legacyExecutor;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(config.getPort()), ACCEPT_BACKLOG);
+        tcpNoDelay = config.isTcpNoDelay();
+
+        loops = new NioEventLoop[config.getEventLoops()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop("Event loop " + i);
+            loops[i].setDaemon(true);
+            loops[i].start();
+        }
+
+        AtomicInteger workerCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(config.getWorkerThreads(), task -> {
+            Thread thread = new Thread(task, "Worker " + workerCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Accepts connections until the server channel is closed, runs on the server thread
+     */
+    public void acceptConnections() {
+        try {
+            while (serverChannel.isOpen()) {
+                SocketChannel channel = serverChannel.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+                NioEventLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                loop.register(new NioConnection(channel, loop, new SerialExecutor(workers), this));
+            }
+        } catch (IOException e) {
+            if (serverChannel.isOpen()) {
+                logger.log(Level.SEVERE, "There are some problems with the server!", e);
+            }
+        } finally {
+            shutdown();
+        }
+    }
+
+    /**
+     * Creates the handler for a connection that completed the handshake
+     * @param connection the connection
+     * @return the handler
+     */
+    Server.ClientHandler createHandler(ClientConnection connection) {
+        return handlerFactory.apply(connection);
+    }
+
+    /**
+     * Serves an object stream client with a blocking handler
+     * @param channel the channel, already removed from its selector
+     * @param received bytes the event loop read before it recognized the client
+     */
+    void handOffLegacyClient(SocketChannel channel, byte[] received) {
+        try {
+            channel.configureBlocking(true);
+            Socket socket = channel.socket();
+            InputStream input = new SequenceInputStream(new ByteArrayInputStream(received), socket.getInputStream());
+            legacyExecutor.execute(legacyHandlerFactory.apply(socket, input));
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Could not hand the object stream client over!", e);
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                logger.log(Level.FINE, "Error closing the channel", ex);
+            }
+        }
+    }
+
+    /**
+     * Closes the server channel, stops the event loops and the worker pool
+     */
+    public void shutdown() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Problems closing the server!", e);
+        }
+        for (NioEventLoop loop : loops) {
+            loop.shutdown();
+        }
+        workers.shutdown();
+        legacyExecutor.shutdownNow();
+    }
+}
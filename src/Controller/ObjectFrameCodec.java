@@ -0,0 +1,41 @@
+package Controller;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Frame codec that uses Java serialization, every frame is a self-contained object stream
+ */
+public class ObjectFrameCodec implements FrameCodec {
+    public static final byte ID = 1;
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encode(Object[] command) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(command);
+        }
+        return bos.toByteArray();
+    }
+
+    @Override
+    public Object[] decode(byte[] frame) throws IOException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(frame))) {
+            Object object = ois.readObject();
+            if (object instanceof Object[] command) {
+                return command;
+            }
+            throw new IOException("Frame does not contain a command: " + object.getClass().getName());
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Frame contains an unknown class!", e);
+        }
+    }
+}
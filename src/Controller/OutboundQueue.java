@@ -0,0 +1,254 @@
+package Controller;
+
+import Model.Commands;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded queue of commands waiting to be written to one client
+ * Senders only enqueue, a single writer task drains the queue into the connection,
+ * so a client that reads slowly holds up its own queue and nobody else
+ * The writer coalesces whatever is queued into one flush, a flush is forced once the oldest unflushed command
+ * reaches the flush deadline, in THROUGHPUT mode the writer also waits up to the deadline for more commands
+ */
+public class OutboundQueue {
+    private static final Logger logger = Logger.getLogger(OutboundQueue.class.getName());
+    private final ClientConnection connection;
+    private final BlockingQueue<EncodedCommand> queue;
+    private final Executor writer;
+    private final ServerConfig.OverflowPolicy overflowPolicy;
+    private final long overflowTimeoutMillis;
+    private final Runnable onOverflow;
+    private final Consumer<List<EncodedCommand>> onDiscard;
+    private final long flushDeadlineNanos;
+    private final long lingerNanos; //how long to wait for more commands before flushing
+    private final FlushStats flushStats;
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile boolean closing;
+
+    /**
+     * @param connection the connection to write to
+     * @param writer executor that runs the writer task
+     * @param config server config with the queue capacity, overflow policy and flush mode
+     * @param flushStats receives the frame and flush counts
+     * @param onOverflow called when the client has to be disconnected because it does not keep up
+     */
+    public OutboundQueue(ClientConnection connection, Executor writer, ServerConfig config, FlushStats flushStats, Runnable onOverflow) {
+        this(connection, writer, config, flushStats, onOverflow, discarded -> {
+            //a client that went away does not need what it was sent
+        });
+    }
+
+    /**
+     * @param connection the connection to write to
+     * @param writer executor that runs the writer task
+     * @param config server config with the queue capacity, overflow policy and flush mode
+     * @param flushStats receives the frame and flush counts
+     * @param onOverflow called when the connection has to be dropped because it does not keep up
+     * @param onDiscard gets the commands still queued when the queue is closed, they were never written
+     */
+    public OutboundQueue(ClientConnection connection, Executor writer, ServerConfig config, FlushStats flushStats, Runnable onOverflow,
+                         Consumer<List<EncodedCommand>> onDiscard) {
+        this.onDiscard = onDiscard;
+        this.connection = connection;
+        this.writer = writer;
+        this.queue = new ArrayBlockingQueue<>(config.getOutboundQueueCapacity());
+        this.overflowPolicy = config.getOverflowPolicy();
+        this.overflowTimeoutMillis = config.getOverflowTimeoutMillis();
+        this.onOverflow = onOverflow;
+        this.flushStats = flushStats;
+        this.flushDeadlineNanos = TimeUnit.MICROSECONDS.toNanos(config.getFlushDeadlineMicros());
+        this.lingerNanos = config.getFlushMode() == ServerConfig.FlushMode.THROUGHPUT ? flushDeadlineNanos : 0;
+    }
+
+    /**
+     * Queues a command for the client, applying the overflow policy if the queue is full
+     * The writer encodes it, not the sender
+     * @param command the command
+     * @return true if the command is queued, it is written or handed to the discard callback then
+     */
+    public boolean send(Object[] command) {
+        return send(new EncodedCommand(command));
+    }
+
+    /**
+     * Queues a command that may be shared with other queues, applying the overflow policy if the queue is full
+     * @param command the command
+     * @return true if the command is queued, it is written or handed to the discard callback then
+     */
+    public boolean send(EncodedCommand command) {
+        if (closing) {
+            return false;
+        }
+        if (!queue.offer(command) && !offerOnOverflow(command)) {
+            return false;
+        }
+        if (closing && queue.remove(command)) {
+            return false; //closed while queuing and not discarded with the rest
+        }
+        scheduleDrain();
+        return true;
+    }
+
+    /**
+     * Applies the overflow policy to a command that did not fit
+     * @param command the command
+     * @return true if the command was queued after all
+     */
+    private boolean offerOnOverflow(EncodedCommand command) {
+        if (overflowPolicy == ServerConfig.OverflowPolicy.DROP_PRESENCE && isPresence(command)) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        if (overflowPolicy == ServerConfig.OverflowPolicy.BLOCK) { //only here the sender waits for the slow client
+            try {
+                if (queue.offer(command, overflowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        droppedCount.incrementAndGet();
+        onOverflow.run();
+        return false;
+    }
+
+    /**
+     * Presence deltas can be dropped, framed clients notice the missing version and ask for a snapshot
+     * @param command the command
+     * @return true if the command only updates the active users list
+     */
+    private static boolean isPresence(EncodedCommand command) {
+        return switch ((Commands) command.command()[0]) {
+            case CONNECTED_USER, REMOVE_ACTIVE_USER, PRESENCE_DELTA -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Starts the writer task unless it is already running
+     */
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            writer.execute(this::drain);
+        }
+    }
+
+    /**
+     * Writes queued commands until the queue is empty, only one drain runs at a time
+     */
+    private void drain() {
+        do {
+            try {
+                writeQueued();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Could not write to the client, dropping its queue", e);
+                close();
+                return;
+            }
+            if (closing) {
+                connection.close(); //everything queued before closeAfterDrain has been written
+                return;
+            }
+            draining.set(false);
+        } while ((!queue.isEmpty() || closing) && draining.compareAndSet(false, true));
+    }
+
+    /**
+     * Writes queued commands without flushing each one, flushes when the queue runs dry or the deadline passes
+     * @throws IOException if writing fails
+     */
+    private void writeQueued() throws IOException {
+        int batched = 0;
+        long batchStart = 0;
+        EncodedCommand command;
+        while ((command = next(batched, batchStart)) != null) {
+            connection.writeBuffered(command);
+            if (batched++ == 0) {
+                batchStart = System.nanoTime();
+            }
+            if (System.nanoTime() - batchStart >= flushDeadlineNanos) {
+                flush(batched);
+                batched = 0;
+            }
+        }
+        if (batched > 0) {
+            flush(batched);
+        }
+    }
+
+    /**
+     * Takes the next command, in THROUGHPUT mode an unflushed batch waits for more until its deadline
+     * @param batched number of unflushed commands
+     * @param batchStart when the first unflushed command was written
+     * @return the command, or null if the batch should be flushed
+     */
+    private EncodedCommand next(int batched, long batchStart) {
+        EncodedCommand command = queue.poll();
+        if (command != null || batched == 0 || lingerNanos == 0 || closing) {
+            return command;
+        }
+        long wait = batchStart + lingerNanos - System.nanoTime();
+        try {
+            return wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private void flush(int frameCount) throws IOException {
+        connection.flush();
+        flushStats.record(frameCount);
+    }
+
+    /**
+     * Closes the connection once everything queued so far is written
+     */
+    public void closeAfterDrain() {
+        closing = true;
+        if (draining.compareAndSet(false, true)) {
+            writer.execute(this::drain);
+        }
+    }
+
+    /**
+     * Drops everything queued, hands it to the discard callback and closes the connection right away
+     */
+    public void close() {
+        closing = true;
+        List<EncodedCommand> discarded = new ArrayList<>();
+        queue.drainTo(discarded);
+        connection.close();
+        if (!discarded.isEmpty()) {
+            onDiscard.accept(discarded);
+        }
+    }
+
+    /**
+     * @return number of commands waiting to be written
+     */
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * @return number of commands dropped because the queue was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+}
@@ -0,0 +1,92 @@
+package Controller;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Versioned set of the users that are online
+ * Logins and logouts are collected as pending changes and published together, a user who logs in and out
+ * again before the next publish cancels out and is never announced
+ * Every publish bumps the version, so clients can apply PRESENCE_DELTA commands in order
+ * and ask for a new PRESENCE_SNAPSHOT when they notice a version they did not get
+ * Callers synchronize on the roster while sending presence commands so every client receives the versions in order
+ */
+public class PresenceRoster {
+    private final Set<String> online = new LinkedHashSet<>(); //as last published
+    private final Map<String, Boolean> pending = new LinkedHashMap<>(); //username -> online, not published yet
+    private long version;
+
+    /**
+     * Changes published by one publish call
+     * @param version the version after the changes
+     * @param online users that came online
+     * @param offline users that went offline
+     */
+    public record Delta(long version, String[] online, String[] offline) {
+    }
+
+    /**
+     * Records that a user came online
+     * @param username the username
+     */
+    public synchronized void add(String username) {
+        record(username, true);
+    }
+
+    /**
+     * Records that a user went offline
+     * @param username the username
+     */
+    public synchronized void remove(String username) {
+        record(username, false);
+    }
+
+    private void record(String username, boolean isOnline) {
+        if (online.contains(username) == isOnline) {
+            pending.remove(username); //cancels an opposite change that was not published yet
+        } else {
+            pending.put(username, isOnline);
+        }
+    }
+
+    /**
+     * Applies the pending changes as one new version
+     * @return the published changes, or null if there were none
+     */
+    public synchronized Delta publish() {
+        if (pending.isEmpty()) {
+            return null;
+        }
+        List<String> cameOnline = new ArrayList<>();
+        List<String> wentOffline = new ArrayList<>();
+        for (Map.Entry<String, Boolean> change : pending.entrySet()) {
+            if (change.getValue()) {
+                online.add(change.getKey());
+                cameOnline.add(change.getKey());
+            } else {
+                online.remove(change.getKey());
+                wentOffline.add(change.getKey());
+            }
+        }
+        pending.clear();
+        return new Delta(++version, cameOnline.toArray(new String[0]), wentOffline.toArray(new String[0]));
+    }
+
+    /**
+     * @return the users that are online as of the current version
+     */
+    public synchronized String[] users() {
+        return online.toArray(new String[0]);
+    }
+
+    /**
+     * @return the current version
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,355 @@
+package Controller;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind queue for messages saved for offline users
+ * Callers queue a message with all its offline receivers, a single writer thread inserts whatever is queued
+ * as one JDBC batch in one transaction, so messages from many senders share a commit
+ * The body of a message is stored once, every offline receiver only gets a pending delivery row,
+ * images are referenced in the attachment store and only their hash is saved
+ * A batch is written once it holds the batch size in rows or its first message has waited for the flush interval
+ * In COMMIT mode save returns once the rows are committed, in ASYNC mode it returns once they are queued
+ */
+public class SavedChatWriter {
+    private static final Logger logger = Logger.getLogger(SavedChatWriter.class.getName());
+    private static final String INSERT_MESSAGE = "INSERT INTO saved_messages (timestamp, sender, message, image_hash) VALUES (CURRENT_TIMESTAMP, ?, ?, ?)";
+    private static final String INSERT_DELIVERY = "INSERT INTO pending_deliveries (receiver, message_id) VALUES (?, ?)";
+
+    /**
+     * When save returns
+     */
+    public enum Durability {
+        ASYNC,
+        COMMIT
+    }
+
+    private final ConnectionPool pool;
+    private final AttachmentStore attachments;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final Durability durability;
+    private final BlockingQueue<PendingChat> queue;
+    private final Thread writer;
+    private final AtomicInteger pendingRows = new AtomicInteger();
+    private final LongAdder batchCount = new LongAdder();
+    private final LongAdder flushCount = new LongAdder();
+    private final LongAdder rowCount = new LongAdder();
+    private final LongAdder failedRowCount = new LongAdder();
+    private final LongAdder flushNanos = new LongAdder();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+    private volatile boolean closing;
+
+    /**
+     * @param pool pool the writer borrows its connection from
+     * @param attachments store for the images
+     * @param batchSize rows written in one batch at most
+     * @param flushIntervalMillis how long a queued message may wait for more to batch with
+     * @param capacity messages that may be queued before callers have to wait
+     * @param durability when save returns
+     */
+    public SavedChatWriter(ConnectionPool pool, AttachmentStore attachments, int batchSize, long flushIntervalMillis, int capacity, Durability durability) {
+        if (batchSize < 1 || flushIntervalMillis < 0 || capacity < 1) {
+            throw new IllegalArgumentException("Invalid saved chat writer settings!");
+        }
+        this.pool = pool;
+        this.attachments = attachments;
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.durability = durability;
+        this.queue = new LinkedBlockingQueue<>(capacity);
+        this.writer = Thread.ofPlatform().name("Saved chat writer").daemon().start(this::run);
+    }
+
+    /**
+     * Saves a message for its offline receivers, waits for the commit in COMMIT mode
+     * @param sender the sender
+     * @param receivers the offline receivers
+     * @param message the message text
+     * @param imageHash the uploaded image, or null
+     * @param imageData the image sent with the message, stored if there is no uploaded one, or null
+     * @throws SQLException if the rows could not be written, only in COMMIT mode
+     */
+    public void save(String sender, List<String> receivers, String message, String imageHash, byte[] imageData) throws SQLException {
+        CompletableFuture<Void> committed = enqueue(sender, receivers, message, imageHash, imageData);
+        if (durability == Durability.ASYNC) {
+            return;
+        }
+        try {
+            committed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for saved chats to commit!", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof SQLException sqlException ? sqlException : new SQLException(e.getCause());
+        }
+    }
+
+    /**
+     * Queues a message for its offline receivers, waiting for space if the queue is full
+     * @param sender the sender
+     * @param receivers the offline receivers
+     * @param message the message text
+     * @param imageHash the uploaded image, or null
+     * @param imageData the image sent with the message, stored if there is no uploaded one, or null
+     * @return completed once the rows are committed
+     */
+    public CompletableFuture<Void> enqueue(String sender, List<String> receivers, String message, String imageHash, byte[] imageData) {
+        PendingChat chat = new PendingChat(sender, List.copyOf(receivers), message, imageHash, imageData, System.nanoTime());
+        if (closing) {
+            chat.committed.completeExceptionally(new SQLException("Saved chat writer is closed!"));
+            return chat.committed;
+        }
+        pendingRows.addAndGet(chat.receivers.size());
+        try {
+            queue.put(chat);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pendingRows.addAndGet(-chat.receivers.size());
+            chat.committed.completeExceptionally(new SQLException("Interrupted while queueing a saved chat!", e));
+        }
+        return chat.committed;
+    }
+
+    /**
+     * Waits until everything queued so far is written, so a following read sees it
+     */
+    public void awaitWritten() {
+        try {
+            enqueue(null, List.of(), null, null, null).join();
+        } catch (RuntimeException e) {
+            //a failed batch has been logged already
+        }
+    }
+
+    /**
+     * Writes batches until the writer is closed and the queue is empty
+     */
+    private void run() {
+        List<PendingChat> batch = new ArrayList<>();
+        while (!closing || !queue.isEmpty()) {
+            PendingChat first = poll(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100));
+            if (first == null) {
+                continue;
+            }
+            batch.add(first);
+            int rows = first.receivers.size();
+            long deadline = first.queuedAt + flushIntervalNanos;
+            PendingChat next;
+            while (rows < batchSize && (next = poll(deadline)) != null) {
+                batch.add(next);
+                rows += next.receivers.size();
+            }
+            write(batch, rows);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Takes the next queued message, waiting until the deadline unless the writer is closing
+     * @param deadline System.nanoTime() to wait until
+     * @return the message, or null if none arrived in time
+     */
+    private PendingChat poll(long deadline) {
+        long wait = deadline - System.nanoTime();
+        if (wait <= 0 || closing) {
+            return queue.poll();
+        }
+        try {
+            return queue.poll(wait, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            closing = true; //write what is left and stop
+            return queue.poll();
+        }
+    }
+
+    /**
+     * Inserts a batch in one transaction and completes its futures
+     * @param batch the queued messages
+     * @param rows number of rows in the batch
+     */
+    private void write(List<PendingChat> batch, int rows) {
+        long start = System.nanoTime();
+        try {
+            if (rows > 0) {
+                insert(batch);
+                batchCount.increment();
+                rowCount.add(rows);
+            }
+            for (PendingChat chat : batch) {
+                chat.committed.complete(null);
+            }
+        } catch (SQLException | IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Could not save " + rows + " chats for offline users!", e);
+            failedRowCount.add(rows);
+            for (PendingChat chat : batch) {
+                chat.committed.completeExceptionally(e);
+            }
+        } finally {
+            pendingRows.addAndGet(-rows);
+            if (rows > 0) {
+                long elapsed = System.nanoTime() - start;
+                flushCount.increment();
+                flushNanos.add(elapsed);
+                maxFlushNanos.accumulateAndGet(elapsed, Math::max);
+            }
+        }
+    }
+
+    private void insert(List<PendingChat> batch) throws SQLException, IOException {
+        List<PendingChat> messages = new ArrayList<>();
+        List<String> imageHashes = new ArrayList<>(); //attachment references taken for this batch, null for no image
+        try {
+            for (PendingChat chat : batch) {
+                if (!chat.receivers.isEmpty()) { //skip awaitWritten markers
+                    messages.add(chat);
+                    imageHashes.add(reference(chat));
+                }
+            }
+            insert(messages, imageHashes);
+        } catch (SQLException | IOException e) {
+            for (String imageHash : imageHashes) {
+                if (imageHash != null) {
+                    attachments.release(imageHash);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Takes a reference to the image of a message, the uploaded file if the server has it, else the bytes sent along
+     * @param chat the message
+     * @return the hash of the image, or null if it has none
+     */
+    private String reference(PendingChat chat) throws SQLException, IOException {
+        if (chat.imageHash != null && attachments.contains(chat.imageHash)) {
+            attachments.addReference(chat.imageHash);
+            return chat.imageHash;
+        }
+        return chat.imageData != null ? attachments.store(chat.imageData) : null;
+    }
+
+    private void insert(List<PendingChat> messages, List<String> imageHashes) throws SQLException {
+        try (Connection con = pool.acquire()) {
+            con.setAutoCommit(false);
+            try (PreparedStatement messageStmt = con.prepareStatement(INSERT_MESSAGE, new String[]{"id"});
+                 PreparedStatement deliveryStmt = con.prepareStatement(INSERT_DELIVERY)) {
+                for (int i = 0; i < messages.size(); i++) {
+                    messageStmt.setString(1, messages.get(i).sender);
+                    messageStmt.setString(2, messages.get(i).message);
+                    messageStmt.setString(3, imageHashes.get(i));
+                    messageStmt.addBatch();
+                }
+                messageStmt.executeBatch();
+                try (ResultSet ids = messageStmt.getGeneratedKeys()) {
+                    for (PendingChat chat : messages) {
+                        if (!ids.next()) {
+                            throw new SQLException("Missing id of a saved message!");
+                        }
+                        long id = ids.getLong(1);
+                        for (String receiver : chat.receivers) {
+                            deliveryStmt.setString(1, receiver);
+                            deliveryStmt.setLong(2, id);
+                            deliveryStmt.addBatch();
+                        }
+                    }
+                }
+                deliveryStmt.executeBatch();
+                con.commit();
+            } catch (SQLException e) {
+                con.rollback();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Stops accepting messages and waits until the queued ones are written
+     * @param timeoutMillis how long to wait
+     */
+    public void close(long timeoutMillis) {
+        closing = true;
+        try {
+            writer.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return rows queued or being written
+     */
+    public int getQueueDepth() {
+        return pendingRows.get();
+    }
+
+    /**
+     * @return batches committed
+     */
+    public long getBatchCount() {
+        return batchCount.sum();
+    }
+
+    /**
+     * @return rows written
+     */
+    public long getRowCount() {
+        return rowCount.sum();
+    }
+
+    /**
+     * @return rows that could not be written
+     */
+    public long getFailedRowCount() {
+        return failedRowCount.sum();
+    }
+
+    /**
+     * @return average time to write a batch, in milliseconds
+     */
+    public double getAverageFlushMillis() {
+        long count = flushCount.sum();
+        return count == 0 ? 0 : flushNanos.sum() / 1_000_000.0 / count;
+    }
+
+    /**
+     * @return longest time to write a batch, in milliseconds
+     */
+    public double getMaxFlushMillis() {
+        return maxFlushNanos.get() / 1_000_000.0;
+    }
+
+    /**
+     * @return the durability mode
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * A message queued for its offline receivers
+     */
+    private record PendingChat(String sender, List<String> receivers, String message, String imageHash, byte[] imageData,
+                               long queuedAt, CompletableFuture<Void> committed) {
+        PendingChat(String sender, List<String> receivers, String message, String imageHash, byte[] imageData, long queuedAt) {
+            this(sender, receivers, message, imageHash, imageData, queuedAt, new CompletableFuture<>());
+        }
+    }
+}
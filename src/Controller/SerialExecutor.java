@@ -0,0 +1,57 @@
+package Controller;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks one at a time and in submission order on top of a shared executor
+ * Used to keep the requests of one connection in order while many connections share a worker pool
+ */
+public class SerialExecutor implements Executor {
+    private static final Logger logger = Logger.getLogger(SerialExecutor.class.getName());
+    private final Executor delegate;
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private boolean running;
+
+    /**
+     * @param delegate the executor that runs the tasks
+     */
+    public SerialExecutor(Executor delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        synchronized (tasks) {
+            tasks.add(task);
+            if (running) {
+                return;
+            }
+            running = true;
+        }
+        delegate.execute(this::drain);
+    }
+
+    /**
+     * Runs queued tasks until the queue is empty
+     */
+    private void drain() {
+        while (true) {
+            Runnable task;
+            synchronized (tasks) {
+                task = tasks.poll();
+                if (task == null) {
+                    running = false;
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Task failed!", e);
+            }
+        }
+    }
+}
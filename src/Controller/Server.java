@@ -5,62 +5,134 @@ import Model.Message;
 import Model.User;
 import View.MainPage;
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
 /**
  * Main Server class to handle incoming client connections and requests
  */
 public class Server extends Thread {
     private static final Logger logger = Logger.getLogger(Server.class.getName());
-    private static final int serverPort = 2323;
-    private final ServerSocket serverSocket;
-    private final ExecutorService threadPool = Executors.newCachedThreadPool(); //thread Pool to handle clients
+    private static final int MESSAGE_THUMBNAIL_SIZE = 120; //size images are shown at in a chat
+    private static final int AVATAR_THUMBNAIL_SIZE = 50; //size of the profile picture on the front page
+    private static final int MAX_UPLOADS_PER_CLIENT = 4;
+    private final ServerConfig config;
+    private final ServerSocket serverSocket; //used by the blocking transport
+    private final NioServerEngine nioEngine; //used by the NIO transport
+    private final ExecutorService threadPool; //runs the blocking client handlers
+    private final FlushStats flushStats = new FlushStats();
+    private final ExecutorService writerPool = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("Writer ", 0).factory()); //drains the outbound queues
+    private final ExecutorService loginTasks = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("Login ", 0).factory()); //loads what follows a login, bounded by the connection pool
+    private final ScheduledExecutorService presenceTicker; //publishes presence changes every window, null if published at once
+    private final ThumbnailService thumbnails;
+    private final AttachmentUploads uploads;
+    private final CredentialVerifier credentials; //derives and checks passwords off the connection threads
     private final DataBaseManager dBManager = DataBaseManager.getInstance();
-    public static final CopyOnWriteArrayList<LinkedList<String>> userChats = new CopyOnWriteArrayList<>();
-    public static final ConcurrentHashMap<String, ClientHandler> clients = new ConcurrentHashMap<>();
-    public static final ConcurrentHashMap<String, MainPage> usersApps = new ConcurrentHashMap<>();
+    private final ChatRegistry userChats = new ChatRegistry();
+    private final ConcurrentHashMap<String, ClientHandler> clients = new ConcurrentHashMap<>(); //users connected to this node
+    private final ConcurrentHashMap<String, MainPage> usersApps = new ConcurrentHashMap<>();
+    private final PresenceRoster presence = new PresenceRoster(); //users online on every node
+    private volatile ClusterNode cluster; //links to the other nodes, null if the server runs alone, opened by start
 
     /**
-     * Initializes the server socket and starts the server thread
+     * Initializes the server with the config given by system properties, start runs it
      */
     public Server() {
+        this(ServerConfig.fromSystemProperties());
+    }
+
+    /**
+     * Initializes the server socket or NIO engine, start runs it
+     * @param config the server config
+     */
+    public Server(ServerConfig config) {
+        this.config = config;
         try {
-            serverSocket = new ServerSocket(serverPort);
+            threadPool = ConnectionExecutors.create(config);
+            if (config.getTransport() == ServerConfig.Transport.NIO) {
+                serverSocket = null;
+                nioEngine = new NioServerEngine(config, ClientHandler::new, ClientHandler::new, threadPool); //object stream clients still get a thread
+            } else {
+                serverSocket = new ServerSocket(config.getPort());
+                nioEngine = null;
+            }
         } catch (IOException e) {
             logger.log(Level.SEVERE, "Failed to start the server!", e);
             throw new RuntimeException("Failed to start the server!", e);
         }
-        start();
+        thumbnails = new ThumbnailService(dBManager.getAttachmentStore(), config.getThumbnailCacheEntries(), config.getThumbnailDir(), config.getThumbnailThreads());
+        try {
+            uploads = new AttachmentUploads(dBManager.getAttachmentStore(), dBManager.getAttachmentStore().getRoot().resolve("uploads"), config.getMaxAttachmentBytes());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to prepare the upload directory!", e);
+        }
+        credentials = new CredentialVerifier(config.getCredentialThreads(), config.getCredentialQueueCapacity());
+        if (config.getPresenceWindowMillis() > 0) {
+            presenceTicker = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("Presence ticker").daemon().factory());
+            presenceTicker.scheduleAtFixedRate(this::publishPresence, config.getPresenceWindowMillis(), config.getPresenceWindowMillis(), TimeUnit.MILLISECONDS);
+        } else {
+            presenceTicker = null;
+        }
+    }
+
+    /**
+     * Joins the cluster if the config names a cluster port and starts the server thread
+     * Called once the server is fully constructed, the cluster calls back into it right away
+     */
+    @Override
+    public void start() {
+        if (config.getClusterPort() > 0) {
+            try {
+                cluster = new ClusterNode(config, this);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to open the cluster port!", e);
+            }
+        }
+        super.start();
     }
 
     @Override
     public void run() {
         Thread.currentThread().setName("Server thread");
 
+        if (nioEngine != null) {
+            nioEngine.acceptConnections(); //returns when the engine is shut down
+            return;
+        }
+
         try {
             while (!serverSocket.isClosed()) {
                 Socket socket = serverSocket.accept();
-                threadPool.execute(new ClientHandler(socket)); //thread pool to manage threads
+                try {
+                    threadPool.execute(new ClientHandler(socket)); //thread pool to manage threads
+                } catch (RejectedExecutionException e) {
+                    logger.log(Level.WARNING, "Server is at capacity, refusing connection from " + socket.getRemoteSocketAddress());
+                    socket.close();
+                }
             }
         } catch (IOException e) {
-            logger.log(Level.SEVERE, "There are some problems with the server!", e);
+            if (!serverSocket.isClosed()) {
+                logger.log(Level.SEVERE, "There are some problems with the server!", e);
+            }
         } finally {
             try {
                 threadPool.shutdown(); //shut down thread pool
@@ -73,52 +145,262 @@ public class Server extends Thread {
         }
     }
 
+    /**
+     * Publishes the logins and logouts collected since the last call as one update to every client
+     * Object stream clients get CONNECTED_USER with the users that came online and a REMOVE_ACTIVE_USER per user that left
+     */
+    private void publishPresence() {
+        PresenceRoster.Delta delta;
+        synchronized (presence) {
+            delta = presence.publish();
+        }
+        if (delta == null) {
+            return;
+        }
+        //queued outside the lock, a client that gets two deltas out of order notices the gap and asks for a snapshot
+        EncodedCommand update = new EncodedCommand(new Object[]{Commands.PRESENCE_DELTA, delta.version(), delta.online(), delta.offline()});
+        List<EncodedCommand> legacyUpdates = new ArrayList<>();
+        if (delta.online().length > 0) {
+            legacyUpdates.add(new EncodedCommand(new Object[]{Commands.CONNECTED_USER, delta.online()}));
+        }
+        for (String user : delta.offline()) {
+            legacyUpdates.add(new EncodedCommand(new Object[]{Commands.REMOVE_ACTIVE_USER, user}));
+        }
+        for (ClientHandler clientHandler : clients.values()) {
+            if (!clientHandler.isLegacyClient()) {
+                clientHandler.writeToStream(update);
+                continue;
+            }
+            for (EncodedCommand legacyUpdate : legacyUpdates) {
+                clientHandler.writeToStream(legacyUpdate);
+            }
+        }
+    }
+
+    /**
+     * @return the link to the other nodes, null if the server runs alone
+     */
+    public ClusterNode getCluster() {
+        return cluster;
+    }
+
+    /**
+     * Forwards a command to the users that are not connected to this node
+     * @param command the command
+     * @param users users not connected to this node
+     * @return the users that are not online on any node
+     */
+    private List<String> forwardToOtherNodes(EncodedCommand command, List<String> users) {
+        return cluster == null || users.isEmpty() ? users : cluster.forward(command, users);
+    }
+
+    /**
+     * Delivers a command another node forwarded to users connected to this node
+     * A message for a user who left in the meantime is saved for the next login
+     * @param command the command
+     * @param recipients the users the command is for
+     */
+    void deliverForwarded(Object[] command, String[] recipients) {
+        EncodedCommand encoded = new EncodedCommand(command);
+        List<String> offlineUsers = new ArrayList<>();
+        for (String recipient : recipients) {
+            ClientHandler clientHandler = clients.get(recipient);
+            if (clientHandler != null) {
+                if (command[0] == Commands.SHOW_MESSAGE) {
+                    clientHandler.allowDownload(((Message) command[1]).getAttachment());
+                }
+                clientHandler.writeToStream(encoded);
+            } else {
+                offlineUsers.add(recipient);
+            }
+        }
+        if (!offlineUsers.isEmpty() && command[0] == Commands.SHOW_MESSAGE) {
+            Message message = (Message) command[1];
+            dBManager.saveChats(message.getSentBy(), offlineUsers, message.getText(), message.getAttachment(), message.getImageData());
+        }
+    }
+
+    /**
+     * @return the users connected to this node
+     */
+    String[] localUsers() {
+        return clients.keySet().toArray(String[]::new);
+    }
+
+    /**
+     * Records a login or logout on another node, clients learn about it from the next presence update
+     * @param user the user
+     * @param online true for a login
+     */
+    void remotePresence(String user, boolean online) {
+        if (clients.containsKey(user)) {
+            return; //connected to this node as well, this node announces the user
+        }
+        if (online) {
+            presence.add(user);
+        } else {
+            presence.remove(user);
+        }
+        if (presenceTicker == null) {
+            publishPresence();
+        }
+    }
+
+    /**
+     * @return the pool passwords are checked on, with its queue and timing metrics
+     */
+    public CredentialVerifier getCredentialVerifier() {
+        return credentials;
+    }
+
+    /**
+     * @return frame and flush counts of all client connections
+     */
+    public FlushStats getFlushStats() {
+        return flushStats;
+    }
+
+    /**
+     * Stops accepting connections and shuts down the transport
+     */
+    public void shutdown() {
+        writerPool.shutdownNow();
+        loginTasks.shutdownNow();
+        credentials.shutdown();
+        if (cluster != null) {
+            cluster.shutdown();
+        }
+        thumbnails.shutdown();
+        uploads.shutdown();
+        if (presenceTicker != null) {
+            presenceTicker.shutdownNow();
+        }
+        if (nioEngine != null) {
+            nioEngine.shutdown();
+            return;
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Problems closing the server!", e);
+        }
+        threadPool.shutdownNow();
+    }
+
     /**
      * Handles individual client connections and requests
+     * With the blocking transport the handler runs on its own thread and reads from the socket,
+     * with the NIO transport the event loop decodes the commands and calls handle
      */
-    public class ClientHandler implements Runnable {
-        private final Socket socket;
-        private final ObjectOutputStream oos;
-        private final ObjectInputStream ois;
+    public final class ClientHandler implements Runnable {
+        private final Socket socket; //only set for the blocking transport
+        private final InputStream input; //what the client sent, read by the blocking transport
+        private volatile ClientConnection connection;
+        private volatile OutboundQueue outbound; //everything sent to the client goes through here
+        private volatile String username; //set once the user has logged in or registered
+        private final AtomicBoolean closed = new AtomicBoolean();
+        //saved chat delivery, the first page is sent by a login task and the rest by the thread handling acknowledgements
+        private final ReentrantLock storedLock = new ReentrantLock();
+        private long storedCursor; //id of the last saved chat sent
+        private List<Long> storedPage = List.of(); //ids of the page the client has not acknowledged yet
+        private long storedPageNumber;
+        private final Map<String, Long> pendingUploads = new HashMap<>(); //size of every file this client is uploading, by hash
+        private final Set<String> downloadable = ConcurrentHashMap.newKeySet(); //attachments the user uploaded, sent or received
 
         /**
-         * Initializes input and output streams for the client socket
+         * Creates a handler for a socket accepted by the blocking transport
+         * The protocol is detected once the handler runs
          */
         public ClientHandler(Socket socket) {
+            this(socket, null);
+        }
+
+        /**
+         * Creates a blocking handler that reads from a stream other than the socket's
+         * @param socket the socket
+         * @param input everything the client sent, null to read from the socket
+         */
+        public ClientHandler(Socket socket, InputStream input) {
             this.socket = socket;
-            try {
-                oos = new ObjectOutputStream(socket.getOutputStream());
-                ois = new ObjectInputStream(socket.getInputStream());
-            } catch (IOException e) {
-                logger.log(Level.SEVERE, "Failed to initialize client streams!", e);
-                throw new RuntimeException("Failed to initialize client streams", e);
-            }
+            this.input = input;
+        }
+
+        /**
+         * Creates a handler for an already established connection
+         * @param connection the connection
+         */
+        public ClientHandler(ClientConnection connection) {
+            this.socket = null;
+            this.input = null;
+            attach(connection);
+        }
+
+        /**
+         * Sets the connection of this handler and the queue that writes to it
+         * @param connection the connection
+         */
+        private void attach(ClientConnection connection) {
+            this.outbound = new OutboundQueue(connection, writerPool, config, flushStats, this::disconnectSlowConsumer);
+            this.connection = connection;
         }
 
         @Override
         public void run() {
             try {
-                while (!Thread.currentThread().isInterrupted() && !socket.isClosed()) {
-                    Object objectSentToStream = ois.readObject();
-
-                    if (objectSentToStream instanceof Object[] object) {
-                        Commands request = (Commands) object[0];
-
-                        switch (request) {
-                            case SEND_MESSAGE_REQUEST -> sendMessage(object);
-                            case LOGIN_REQUEST -> loginUser(object);
-                            case REGISTRATION_REQUEST -> registerUser(object);
-                            case CHAT_REQUEST -> createChat(object);
-                            case ADD_TO_CONTACTS_REQUEST -> addToContacts(object);
-                            case LOGOUT_REQUEST -> logoutUser(object);
-                            case CLOSE_CHAT_VIEW_REQUEST -> closeChat(object);
-                        }
-                    }
+                socket.setTcpNoDelay(config.isTcpNoDelay());
+                BlockingConnection blockingConnection = WireProtocol.accept(socket, input == null ? socket.getInputStream() : input, config.getStreamResetPolicy());
+                attach(blockingConnection);
+                while (!Thread.currentThread().isInterrupted() && blockingConnection.isOpen()) {
+                    handle(blockingConnection.read());
                 }
-            } catch (IOException | ClassNotFoundException e) {
+            } catch (IOException e) {
                 logger.log(Level.SEVERE, "Client disconnected or error occurred!", e);
             } finally {
-                closeAll(Thread.currentThread().getName());
+                closeAll(username);
+            }
+        }
+
+        /**
+         * Runs a single request sent by the client
+         * @param object the command, the request type is at index 0
+         */
+        public void handle(Object[] object) {
+            Commands request = (Commands) object[0];
+
+            switch (request) {
+                case SEND_MESSAGE_REQUEST -> sendMessage(object);
+                case LOGIN_REQUEST -> loginUser(object);
+                case REGISTRATION_REQUEST -> registerUser(object);
+                case CHAT_REQUEST -> createChat(object);
+                case ADD_TO_CONTACTS_REQUEST -> addToContacts(object);
+                case LOGOUT_REQUEST -> logoutUser(object);
+                case CLOSE_CHAT_VIEW_REQUEST -> closeChat(object);
+                case PRESENCE_RESYNC_REQUEST -> sendPresenceSnapshot();
+                case STORED_MESSAGES_ACK -> acknowledgeStoredPage(object);
+                case UPLOAD_START_REQUEST -> startUpload(object);
+                case UPLOAD_CHUNK -> receiveUploadChunk(object);
+                case DOWNLOAD_REQUEST -> sendDownloadChunk(object);
+                case CONTACTS_SYNC_REQUEST -> syncContacts(object);
+                case REMOVE_FROM_CONTACTS_REQUEST -> removeFromContacts(object);
+            }
+        }
+
+        /**
+         * Called by the transport when the client went away
+         */
+        public void connectionClosed() {
+            closeAll(username);
+        }
+
+        /**
+         * Remembers which user this handler serves
+         * Blocking handlers also name their thread after the user for debugging
+         * @param username the username
+         */
+        private void setUsername(String username) {
+            this.username = username;
+            if (socket != null) {
+                Thread.currentThread().setName(username);
             }
         }
 
@@ -130,82 +412,157 @@ public class Server extends Thread {
          */
         private void sendMessage(Object[] msg) {
             Message message = (Message) msg[1];
+            if (message.getAttachment() != null && !downloadable.contains(message.getAttachment())) {
+                logger.log(Level.WARNING, username + " attached " + message.getAttachment() + " without uploading or receiving it!");
+                return;
+            }
 
             LinkedList<String> list = new LinkedList<>(message.getRecipientList()); //list of recipients
-            LinkedList<String> offlineUsers = new LinkedList<>(); //list to track offline users
+            List<String> offlineUsers = new LinkedList<>(); //list to track offline users
+            EncodedCommand showMessage = new EncodedCommand(new Object[]{Commands.SHOW_MESSAGE, message}); //encoded once for all recipients
 
             for (String u : list) {
                 ClientHandler clientHandler = clients.get(u); //check if recipient is online
                 if (clientHandler != null) {
-                    clientHandler.writeToStream(new Object[]{Commands.SHOW_MESSAGE, message}); //deliver message
+                    clientHandler.allowDownload(message.getAttachment());
+                    clientHandler.writeToStream(showMessage); //deliver message
                 } else {
                     offlineUsers.add(u); //mark user as offline
                 }
             }
+            offlineUsers = forwardToOtherNodes(showMessage, offlineUsers); //users on other nodes get it from their node
 
-            for (String u : offlineUsers) {
-                //save the message in the database for offline users
-                dBManager.saveChat(message.getSentBy(), u, message.getText(), message.getImagePath());
+            if (!offlineUsers.isEmpty()) {
+                //save the message in the database for offline users, all rows go into one batch
+                dBManager.saveChats(message.getSentBy(), offlineUsers, message.getText(), message.getAttachment(), message.getImageData());
             }
         }
 
         /**
          * Handles user login
-         * Verifies credentials, retrieves user information, and initializes the client session
+         * The password is checked on the credential verifier, the rest of the login continues on a login task
+         * The handler is only registered for the user once the password is right
          * @param user an array where the user object is at index 1
          */
         private void loginUser(Object[] user) {
             User theUser = (User) user[1];
             String username = theUser.getUsername();
             String password = theUser.getPassword();
-            put(username, this); //register the client handler
-
-            if (dBManager.verifyUser(username, password)) { //check if credentials are correct
-                List<Map<String, Object>> map = dBManager.getAdditionalUserInfo(username); //fetch user details
-                userInfoFromDatabase(map); //send user details to the client
-                List<Map<String, Object>> map2 = dBManager.getContacts(username); //fetch user contacts
-                loadContacts(map2, username); //send contacts to the client
-                loadSavedChats(dBManager.fetchSavedChats(username), username); //load any saved (offline) chats
-                Thread.currentThread().setName(username); //set thread name for debugging
-                updateActiveUsers(); //notify all clients about active users
-            } else {
-                //if credentials are incorrect, notify the client and close the session
-                writeToStream(new Object[]{Commands.LOGIN_UNSUCCESSFUL, "Wrong credentials!"});
+            setUsername(username); //remember the user, names the thread for debugging
+
+            UserProfileCache.Profile profile = dBManager.getUserProfile(username); //one lookup, usually answered from memory
+            if (profile == null) {
+                rejectLogin();
+                return;
+            }
+            CompletableFuture<Boolean> verified;
+            try {
+                verified = credentials.submit(CredentialVerifier.Priority.LOGIN, () -> profile.hasPassword(password)); //slow on purpose
+            } catch (RejectedExecutionException e) {
+                retryLater(Commands.LOGIN_REQUEST, new Object[]{Commands.LOGIN_UNSUCCESSFUL, "Server is busy, try again later!"});
+                return;
+            }
+            verified.whenCompleteAsync((matches, e) -> {
+                if (e != null || !matches) {
+                    rejectLogin();
+                    return;
+                }
+                put(username, this); //register the client handler
+                sendProfile(profile); //the client shows the front page right away
+                announceOnline(username); //snapshot for the user, delta for everybody else
+                //contacts and saved chats are loaded in parallel and follow as their own frames
+                try {
+                    if (isLegacyClient()) {
+                        loginTasks.execute(() -> loadContacts(dBManager.getContacts(username), username)); //framed clients ask for the changes since their saved copy
+                    }
+                    loginTasks.execute(this::sendStoredPage); //start sending any saved (offline) chats
+                } catch (RejectedExecutionException ex) {
+                    logger.log(Level.WARNING, "Server is shutting down, login of " + username + " is incomplete!");
+                }
+                rederivePassword(profile, password);
+            }, loginTasks);
+        }
+
+        /**
+         * Notifies the client of wrong credentials and closes the session
+         */
+        private void rejectLogin() {
+            writeToStream(new Object[]{Commands.LOGIN_UNSUCCESSFUL, "Wrong credentials!"});
+            closeAll(username);
+        }
+
+        /**
+         * Stores a password that predates PBKDF2 or the current iterations in the current form, when the verifier has time for it
+         * @param profile the profile the password was verified against
+         * @param password the password hash sent by the client
+         */
+        private void rederivePassword(UserProfileCache.Profile profile, String password) {
+            int iterations = config.getPasswordIterations();
+            if (!Encryptor.needsRederive(profile.password(), iterations)) {
+                return;
+            }
+            try {
+                credentials.submit(CredentialVerifier.Priority.REDERIVE, () -> Encryptor.derivePassword(password, iterations))
+                        .thenAcceptAsync(derived -> dBManager.updatePassword(profile.username(), profile.password(), derived), loginTasks);
+            } catch (RejectedExecutionException e) {
+                //busy, the next login tries again
+            }
+        }
+
+        /**
+         * Tells the client the credential verifier is saturated
+         * Framed clients send the request again after the given time, object stream clients get the failure reply and are disconnected
+         * @param request the request that was not admitted
+         * @param legacyReply the reply for object stream clients
+         */
+        private void retryLater(Commands request, Object[] legacyReply) {
+            long retryAfter = credentials.getRetryAfterMillis();
+            logger.log(Level.INFO, "Credential checks are saturated, " + username + " may retry in " + retryAfter + " ms!");
+            if (isLegacyClient()) {
+                writeToStream(legacyReply);
                 closeAll(username);
+            } else {
+                writeToStream(new Object[]{Commands.RETRY_LATER, request.name(), retryAfter});
             }
         }
 
         /**
          * Registers a new user in the database
+         * The password is derived on the credential verifier, the user is stored on a login task
          * Sends a success or failure response to the client
          * @param user an array where the user object is at index 1
          */
         private void registerUser(Object[] user) {
             User theUser = (User) user[1];
             String username = theUser.getUsername();
-            put(username, this); //register the client handler
-
-            //attempt to register the user in the database
-            boolean canRegister = dBManager.registerUser(
-                    username,
-                    theUser.getPassword(),
-                    theUser.getFirstName(),
-                    theUser.getLastName(),
-                    theUser.getImagePath()
-            );
+            setUsername(username); //remember the user, names the thread for debugging
 
-            Object[] messageToClient = canRegister
-                    ? new Object[]{Commands.REGISTRATION_SUCCESSFUL, theUser} //success response
-                    : new Object[]{Commands.REGISTRATION_UNSUCCESSFUL, theUser}; //failure response
-
-            writeToStream(messageToClient); //notify the client about the result
-            if (canRegister) {
-                updateActiveUsers(); //notify all clients about the new user
-            } else {
-                closeAll(username); //close the session for unsuccessful registration
+            CompletableFuture<String> derived;
+            try {
+                derived = credentials.submit(CredentialVerifier.Priority.REGISTRATION, () -> Encryptor.derivePassword(theUser.getPassword(), config.getPasswordIterations()));
+            } catch (RejectedExecutionException e) {
+                retryLater(Commands.REGISTRATION_REQUEST, new Object[]{Commands.REGISTRATION_UNSUCCESSFUL, theUser});
+                return;
             }
+            derived.whenCompleteAsync((password, e) -> {
+                //attempt to register the user in the database
+                boolean canRegister = e == null && dBManager.registerUser(
+                        username,
+                        password,
+                        theUser.getFirstName(),
+                        theUser.getLastName(),
+                        theUser.getImagePath()
+                );
 
-            Thread.currentThread().setName(username); //set thread name for debugging
+                if (canRegister) {
+                    put(username, this); //register the client handler
+                    writeToStream(new Object[]{Commands.REGISTRATION_SUCCESSFUL, theUser}); //notify the client about the result
+                    announceOnline(username); //snapshot for the user, delta for everybody else
+                } else {
+                    writeToStream(new Object[]{Commands.REGISTRATION_UNSUCCESSFUL, theUser});
+                    closeAll(username); //close the session for unsuccessful registration
+                }
+            }, loginTasks);
         }
 
         /**
@@ -215,12 +572,46 @@ public class Server extends Thread {
          */
         private void addToContacts(Object[] contact) {
             LinkedList<String> userList = (LinkedList<String>) contact[1]; //user and contact details
-            if (dBManager.registerContact(userList.get(0), userList.get(1))) {
-                //reload and send updated contact list to the client
-                loadContacts(dBManager.getContacts(userList.get(0)), userList.get(0));
+            long version = dBManager.addContact(userList.get(0), userList.get(1));
+            if (version < 0) {
+                return; //a contact already
+            }
+            if (isLegacyClient()) {
+                writeToStream(new Object[]{Commands.SHOW_CONTACTS, userList.get(0), new LinkedList<>(List.of(userList.get(1)))}); //merged into the client's list
+            } else {
+                writeToStream(new Object[]{Commands.CONTACT_ADDED, version, userList.get(1)});
+            }
+        }
+
+        /**
+         * Removes a contact of the user and sends the change to the client
+         * @param contact an array where a list of the user and the contact is at index 1
+         */
+        private void removeFromContacts(Object[] contact) {
+            List<?> userList = (List<?>) contact[1];
+            if (userList.size() != 2 || !(userList.get(0) instanceof String user) || !(userList.get(1) instanceof String removed)) {
+                return; //not a user and a contact
+            }
+            long version = dBManager.removeContact(user, removed);
+            if (version > 0) {
+                writeToStream(new Object[]{Commands.CONTACT_REMOVED, version, removed});
             }
         }
 
+        /**
+         * Sends the changes to the user's contacts since the version the client has saved
+         * @param request an array with the client's version at index 1
+         */
+        private void syncContacts(Object[] request) {
+            long since = (Long) request[1];
+            DataBaseManager.ContactChanges changes = dBManager.getContactChanges(username, since);
+            if (changes == null) {
+                return;
+            }
+            writeToStream(new Object[]{Commands.CONTACTS_SYNC, changes.full() ? 0L : since, changes.version(),
+                    changes.added().toArray(new String[0]), changes.removed().toArray(new String[0])}); //nothing but the version if nothing changed
+        }
+
         /**
          * Logs out a user by closing their session and notifying other clients
          * @param user an array where the username is at index 1
@@ -232,16 +623,13 @@ public class Server extends Thread {
 
         /**
          * Creates a new chat session with the selected users
-         * Ensures thread-safe registration of the chat
+         * Only the request that registers the chat starts it, the same users in another order are the same chat
          * @param users an array where the list of users in the chat is at index 1
          */
         private void createChat(Object[] users) {
             LinkedList<String> userList = (LinkedList<String>) users[1]; //list of users in the chat
-            synchronized (userChats) { //thread-safe access to chat list
-                if (!userChats.contains(userList)) {
-                    registerChat(userList); //register the chat session
-                    startChatting(userList); //notify clients to start chatting
-                }
+            if (registerChat(userList)) { //register the chat session
+                startChatting(userList); //notify clients to start chatting
             }
         }
 
@@ -253,72 +641,200 @@ public class Server extends Thread {
          */
         private void closeChat(Object[] userList) {
             LinkedList<String> users = (LinkedList<String>) userList[1];
+            List<String> registered = deleteChat(users); //remove the chat from the system
+            if (registered != null) {
+                users = new LinkedList<>(registered); //the clients know the chat by the list it was started with
+            }
+            EncodedCommand closeChatView = new EncodedCommand(new Object[]{Commands.CLOSE_CHAT_VIEW, users});
+            List<String> remoteUsers = new ArrayList<>();
             for (String username : users) {
                 ClientHandler clientHandler = clients.get(username); //get the client handler for each user
                 if (clientHandler != null) {
-                    clientHandler.writeToStream(new Object[]{Commands.CLOSE_CHAT_VIEW, users}); //notify clients to close the chat view
+                    clientHandler.writeToStream(closeChatView); //notify clients to close the chat view
+                } else {
+                    remoteUsers.add(username);
                 }
             }
-            deleteChat(users); //remove the chat from the system
+            forwardToOtherNodes(closeChatView, remoteUsers);
         }
 
         /**
-         * Fetches and loads saved chats for a user upon login
-         * Retrieves messages from the database, converts them to Message objects, and sends them to the client
-         * @param chatList a list of saved chat data fetched from the database
-         * @param receiver the username of the user receiving the chats
+         * Sends the next page of saved chats to the user
+         * Framed clients acknowledge every page, it is removed from the database and the next one is sent only then,
+         * so a page that never arrived is sent again at the next login
+         * Legacy clients cannot acknowledge, every page is removed once it is queued and the next one follows right away
          */
-        private void loadSavedChats(List<Map<String, Object>> chatList, String receiver) {
-            ArrayList<Message> messages = new ArrayList<>();
+        private void sendStoredPage() {
+            storedLock.lock();
             try {
-                for (Map<String, Object> chat : chatList) {
-                    String timestamp = String.valueOf(chat.get("timestamp")); //fetch timestamp
-                    String sender = (String) chat.get("sender"); //fetch sender's username
-                    String text = (String) chat.get("message"); //fetch message text
-                    byte[] image = (byte[]) chat.get("image"); //fetch image (if any)
-
-                    //build the Message object using the Message.Builder
-                    Message.Builder builder = new Message.Builder()
-                            .withText(text)
-                            .withSentBy(sender)
-                            .withSendTime(timestamp)
-                            .addRecipients(Collections.singletonList(receiver));
-
-                    if (image != null) {
-                        builder.withImage(convertToImageIcon(convertToBufferedImage(image))); //add image if available
+                while (true) {
+                    List<Map<String, Object>> chatList = dBManager.fetchSavedChatPage(username, storedCursor, config.getStoredPageMessages(), config.getStoredPageBytes());
+                    if (chatList.isEmpty()) {
+                        storedPage = List.of(); //everything delivered
+                        return;
+                    }
+                    //request every thumbnail of the page first so they are made in parallel
+                    List<CompletableFuture<byte[]>> images = new ArrayList<>();
+                    for (Map<String, Object> chat : chatList) {
+                        String imageHash = (String) chat.get("image_hash");
+                        images.add(imageHash == null ? null : thumbnails.thumbnail(imageHash, MESSAGE_THUMBNAIL_SIZE));
+                    }
+
+                    ArrayList<Message> messages = new ArrayList<>();
+                    List<Long> ids = new ArrayList<>();
+                    for (int i = 0; i < chatList.size(); i++) {
+                        Map<String, Object> chat = chatList.get(i);
+                        String timestamp = String.valueOf(chat.get("timestamp")); //fetch timestamp
+                        String sender = (String) chat.get("sender"); //fetch sender's username
+                        String text = (String) chat.get("message"); //fetch message text
+
+                        //build the Message object using the Message.Builder
+                        Message.Builder builder = new Message.Builder()
+                                .withText(text)
+                                .withSentBy(sender)
+                                .withSendTime(timestamp)
+                                .addRecipients(Collections.singletonList(username));
+
+                        if (images.get(i) != null) {
+                            String imageHash = (String) chat.get("image_hash");
+                            try {
+                                builder.withImage(images.get(i).join(), Message.PNG, MESSAGE_THUMBNAIL_SIZE, MESSAGE_THUMBNAIL_SIZE) //add the thumbnail if there is an image
+                                        .withAttachment(imageHash); //the whole image can be downloaded
+                                allowDownload(imageHash);
+                            } catch (CompletionException e) {
+                                //one broken image must not hold up the rest of the backlog on every login
+                                logger.log(Level.WARNING, "Could not make the thumbnail of " + imageHash + " for " + username + ", sending the message without it!", e.getCause());
+                            }
+                        }
+
+                        messages.add(builder.build()); //add the built message to the list
+                        ids.add((Long) chat.get("id"));
                     }
 
-                    messages.add(builder.build()); //add the built message to the list
+                    storedCursor = ids.getLast();
+                    storedPage = ids;
+                    storedPageNumber++;
+                    writeToStream(new Object[]{Commands.SHOW_STORED_MESSAGES, messages, storedPageNumber}); //send the page to the client
+                    if (!isLegacyClient()) {
+                        return; //the next page follows the acknowledgement
+                    }
+                    dBManager.removeSavedChats(username, ids);
                 }
+            } finally {
+                storedLock.unlock();
+            }
+        }
 
-                if (!messages.isEmpty()) {
-                    writeToStream(new Object[]{Commands.SHOW_STORED_MESSAGES, messages}); //send stored messages to the client
+        /**
+         * Removes an acknowledged page of saved chats from the database and sends the next one
+         * @param ack an array where the page number is at index 1
+         */
+        private void acknowledgeStoredPage(Object[] ack) {
+            storedLock.lock();
+            try {
+                if ((Long) ack[1] != storedPageNumber || storedPage.isEmpty()) {
+                    return; //repeated or out of date
                 }
+                List<Long> delivered = storedPage;
+                storedPage = List.of();
+                dBManager.removeSavedChats(username, delivered); //remove delivered chats from the database
+                sendStoredPage();
+            } finally {
+                storedLock.unlock();
+            }
+        }
 
-                dBManager.removeSavedChats(receiver); //remove delivered chats from the database
+        /**
+         * Starts or resumes an upload, the client is told where to continue or that the server has the file already
+         * @param request an array with the hash of the file at index 1 and its size at index 2
+         */
+        private void startUpload(Object[] request) {
+            String hash = (String) request[1];
+            long size = (Long) request[2];
+            if (username == null || (pendingUploads.size() >= MAX_UPLOADS_PER_CLIENT && !pendingUploads.containsKey(hash))) {
+                writeToStream(new Object[]{Commands.UPLOAD_FAILED, hash, "Too many uploads!"});
+                return;
+            }
+            try {
+                long offset = uploads.start(hash, size);
+                if (offset == size) {
+                    pendingUploads.remove(hash);
+                    allowDownload(hash);
+                    writeToStream(new Object[]{Commands.UPLOAD_COMPLETE, hash});
+                } else {
+                    pendingUploads.put(hash, size);
+                    writeToStream(new Object[]{Commands.UPLOAD_ACK, hash, offset});
+                }
+            } catch (IOException e) {
+                writeToStream(new Object[]{Commands.UPLOAD_FAILED, hash, e.getMessage()});
+            }
+        }
+
+        /**
+         * Writes a chunk of an upload and tells the client where to continue
+         * @param chunk an array with the hash at index 1, the offset at index 2, the bytes at index 3 and their CRC32 at index 4
+         */
+        private void receiveUploadChunk(Object[] chunk) {
+            String hash = (String) chunk[1];
+            Long size = pendingUploads.get(hash);
+            byte[] data = (byte[]) chunk[3];
+            if (size == null || data == null || data.length > config.getAttachmentChunkBytes()) {
+                writeToStream(new Object[]{Commands.UPLOAD_FAILED, hash, "Unexpected chunk!"});
+                return;
+            }
+            try {
+                long offset = uploads.write(hash, size, (Long) chunk[2], data, (Long) chunk[4]);
+                if (offset == size) {
+                    pendingUploads.remove(hash);
+                    allowDownload(hash);
+                    writeToStream(new Object[]{Commands.UPLOAD_COMPLETE, hash});
+                } else {
+                    writeToStream(new Object[]{Commands.UPLOAD_ACK, hash, offset});
+                }
             } catch (IOException e) {
-                logger.log(Level.SEVERE, "Error loading saved chats for " + receiver, e);
+                logger.log(Level.WARNING, "Upload of " + hash + " by " + username + " failed!", e);
+                pendingUploads.remove(hash);
+                writeToStream(new Object[]{Commands.UPLOAD_FAILED, hash, e.getMessage()});
             }
         }
 
         /**
-         * Converts a byte array representing an image to a BufferedImage object
-         * @param imageBytes the byte array containing the image data
-         * @return a BufferedImage object
-         * @throws IOException if an I/O error occurs during conversion
+         * Sends the chunk of an attachment the client asked for, the client asks for the next one when it has it
+         * Only attachments the user uploaded, sent or received in this session are served
+         * @param request an array with the hash at index 1 and the offset at index 2
          */
-        private static BufferedImage convertToBufferedImage(byte[] imageBytes) throws IOException {
-            return ImageIO.read(new ByteArrayInputStream(imageBytes));
+        private void sendDownloadChunk(Object[] request) {
+            String hash = (String) request[1];
+            long offset = (Long) request[2];
+            AttachmentStore attachments = dBManager.getAttachmentStore();
+            if (username == null || !downloadable.contains(hash) || !attachments.contains(hash)) { //the same answer, so hashes cannot be probed
+                writeToStream(new Object[]{Commands.DOWNLOAD_FAILED, hash, "No such attachment!"});
+                return;
+            }
+            try {
+                long size = attachments.size(hash);
+                if (offset < 0 || offset > size) {
+                    writeToStream(new Object[]{Commands.DOWNLOAD_FAILED, hash, "Offset out of range!"});
+                    return;
+                }
+                byte[] data = attachments.readChunk(hash, offset, config.getAttachmentChunkBytes());
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                writeToStream(new Object[]{Commands.DOWNLOAD_CHUNK, hash, offset, data, crc.getValue(), size});
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not read attachment " + hash, e);
+                writeToStream(new Object[]{Commands.DOWNLOAD_FAILED, hash, "Could not read the attachment!"});
+            }
         }
 
         /**
-         * Converts a BufferedImage to an ImageIcon, scaling it to a fixed size
-         * @param img the BufferedImage to convert
-         * @return an ImageIcon object
+         * Lets the user download an attachment of a message sent to or by them, or uploaded by them
+         * @param hash the attachment hash, null if the message has none
          */
-        private static ImageIcon convertToImageIcon(BufferedImage img) {
-            Image scaledImage = img.getScaledInstance(120, 120, Image.SCALE_SMOOTH); //scale the image
-            return new ImageIcon(scaledImage);
+        void allowDownload(String hash) {
+            if (hash != null) {
+                downloadable.add(hash);
+            }
         }
 
         /**
@@ -336,20 +852,30 @@ public class Server extends Thread {
         }
 
         /**
-         * Fetches additional user information from the database and sends it to the client
-         * @param userInfoList a list of user information maps fetched from the database
+         * Sends the profile of the user who logged in to the client
+         * An avatar that still has to be rendered does not hold up framed clients, it follows as PROFILE_IMAGE
+         * @param profile the user's profile
          */
-        private void userInfoFromDatabase(List<Map<String, Object>> userInfoList) {
-            User user = null;
-            for (Map<String, Object> userInfo : userInfoList) {
-                user = new User(
-                        (String) userInfo.get("username"),
-                        (String) userInfo.get("firstname"),
-                        (String) userInfo.get("lastname"),
-                        (byte[]) userInfo.get("image")
-                );
-            }
+        private void sendProfile(UserProfileCache.Profile profile) {
+            String imageHash = profile.imageHash();
+            CompletableFuture<byte[]> avatar = imageHash == null ? null : thumbnails.thumbnail(imageHash, AVATAR_THUMBNAIL_SIZE); //the client shows the avatar at this size
+            boolean waitForAvatar = avatar != null && (avatar.isDone() || isLegacyClient());
+            User user = new User(
+                    profile.username(),
+                    profile.firstName(),
+                    profile.lastName(),
+                    waitForAvatar ? thumbnails.thumbnailNow(imageHash, AVATAR_THUMBNAIL_SIZE) : null
+            );
             writeToStream(new Object[]{Commands.LOGIN_SUCCESSFUL, user}); //notify the client of successful login
+            if (avatar != null && !waitForAvatar) {
+                avatar.whenComplete((image, e) -> {
+                    if (e != null) {
+                        logger.log(Level.WARNING, "Could not make the avatar of " + profile.username(), e);
+                    } else {
+                        writeToStream(new Object[]{Commands.PROFILE_IMAGE, image});
+                    }
+                });
+            }
         }
 
         /**
@@ -358,31 +884,75 @@ public class Server extends Thread {
          * @param list a list of usernames in the chat
          */
         public void startChatting(LinkedList<String> list) {
+            EncodedCommand startChatting = new EncodedCommand(new Object[]{Commands.START_CHATTING, list});
+            List<String> remoteUsers = new ArrayList<>();
             for (String user : list) {
-                if (clients.get(user) != null) {
-                    clients.get(user).writeToStream(new Object[]{Commands.START_CHATTING, list}); //notify each user
+                ClientHandler clientHandler = clients.get(user);
+                if (clientHandler != null) {
+                    clientHandler.writeToStream(startChatting); //notify each user
+                } else {
+                    remoteUsers.add(user);
                 }
             }
+            forwardToOtherNodes(startChatting, remoteUsers);
         }
         /**
-         * Updates the list of active users by notifying all connected clients
-         * Sends the current list of connected users to each client
+         * Sends the user a snapshot of the active users and records the login
+         * Everybody, the user included, learns about the login from the next presence update
+         * @param user the username
          */
-        public void updateActiveUsers() {
-            String[] connectedUsers = clients.keySet().toArray(new String[0]); //get all connected usernames
-            for (ClientHandler clientHandler : clients.values()) {
-                clientHandler.writeToStream(new Object[]{Commands.CONNECTED_USER, connectedUsers}); //notify each client
+        public void announceOnline(String user) {
+            Object[] snapshot;
+            synchronized (presence) { //the snapshot holds every user before this one, the next delta adds it
+                snapshot = presenceSnapshot();
+                presence.add(user);
+            }
+            writeToStream(snapshot);
+            if (presenceTicker == null) {
+                publishPresence();
             }
+            if (cluster != null) {
+                cluster.announce(user, true);
+            }
+        }
+
+        /**
+         * Sends the client every active user, on login and when the client noticed a missing presence version
+         */
+        private void sendPresenceSnapshot() {
+            Object[] snapshot;
+            synchronized (presence) {
+                snapshot = presenceSnapshot();
+            }
+            writeToStream(snapshot);
+        }
+
+        /**
+         * Takes the active users with their version, called while holding the presence lock
+         * @return the snapshot command for this client
+         */
+        private Object[] presenceSnapshot() {
+            return isLegacyClient()
+                    ? new Object[]{Commands.CONNECTED_USER, presence.users()}
+                    : new Object[]{Commands.PRESENCE_SNAPSHOT, presence.getVersion(), presence.users()};
+        }
+
+        /**
+         * @return true if the client talks the original object stream protocol and does not know presence versions
+         */
+        private boolean isLegacyClient() {
+            return connection instanceof LegacyStreamConnection;
         }
 
         /**
          * Removes a client from the system
          * Deletes the user from the clients and usersApps mappings
          * @param user the username of the client to remove
+         * @return true if this handler was the user's current one
          */
-        public void removeClient(String user) {
-            clients.remove(user); //remove from active clients
+        public boolean removeClient(String user) {
             usersApps.remove(user); //remove from user apps
+            return clients.remove(user, this); //remove from active clients, unless the user has logged in again elsewhere
         }
 
         /**
@@ -396,54 +966,75 @@ public class Server extends Thread {
         }
 
         /**
-         * Registers a new chat session between users
-         * Adds the chat to the shared chat list in a thread-safe manner
+         * Registers a new chat session between users, unless it is open already
          * @param chat the list of users in the chat
+         * @return true if the chat was registered by this call
          */
-        public void registerChat(LinkedList<String> chat) {
-            synchronized (userChats) {
-                userChats.add(chat);
-            }
+        public boolean registerChat(LinkedList<String> chat) {
+            return userChats.register(chat);
         }
 
         /**
          * Deletes a chat session
-         * Removes the chat from the shared chat list in a thread-safe manner
-         * @param chat the list of users in the chat to delete
+         * @param chat the list of users in the chat to delete, in any order
+         * @return the users as the chat was registered with, or null if it was not open
          */
-        public void deleteChat(LinkedList<String> chat) {
-            synchronized (userChats) {
-                userChats.remove(chat);
+        public List<String> deleteChat(LinkedList<String> chat) {
+            return userChats.remove(chat);
+        }
+
+        /**
+         * Queues an object for the client, the writer of the handler's outbound queue sends it
+         * Returns without waiting for the client, unless the queue is full and the overflow policy says to wait
+         * @param object the command to send
+         */
+        public void writeToStream(Object[] object) {
+            OutboundQueue target = outbound;
+            if (target != null) {
+                target.send(object);
             }
         }
 
         /**
-         * Sends an object to the client via the output stream
-         * Ensures the object is written and flushed properly
-         * @param object the object to send
+         * Queues a command that is sent to several clients, its encoded bytes are shared with the other recipients
+         * @param command the command to send
          */
-        public void writeToStream(Object object) {
-            try {
-                oos.writeObject(object);
-                oos.flush();
-            } catch (IOException e) {
-                logger.log(Level.SEVERE, "Error writing object to stream. Object class " + object.getClass().getName(), e);
+        public void writeToStream(EncodedCommand command) {
+            OutboundQueue target = outbound;
+            if (target != null) {
+                target.send(command);
             }
         }
 
+        /**
+         * Drops a client whose outbound queue stays full, called by the queue
+         */
+        private void disconnectSlowConsumer() {
+            logger.log(Level.WARNING, "Client " + username + " is not reading fast enough, disconnecting!");
+            outbound.close();
+            closeAll(username);
+        }
+
         /**
          * Closes all resources associated with a user session
          * Removes the user from the system and closes all streams and sockets
          * @param user the username of the user to close
          */
         public void closeAll(String user) {
+            if (!closed.compareAndSet(false, true)) {
+                return; //already closed
+            }
             try {
-                removeClient(user); //remove the client from the system
-                removeFromActiveUsers(user); //notify other users about logout
+                if (user != null && removeClient(user)) { //remove the client from the system
+                    removeFromActiveUsers(user); //notify other users about logout
+                    userChats.removeUser(user); //the other members keep their views, a new chat request starts the chat again
+                }
 
-                if (oos != null) oos.close();
-                if (ois != null) ois.close();
-                if (socket != null) socket.close();
+                if (outbound != null) {
+                    outbound.closeAfterDrain(); //what was queued before, e.g. LOGIN_UNSUCCESSFUL, still goes out
+                } else if (socket != null) {
+                    socket.close();
+                }
             } catch (IOException e) {
                 logger.log(Level.SEVERE, "Error closing resources for user: " + user, e);
             }
@@ -451,13 +1042,16 @@ public class Server extends Thread {
 
         /**
          * Removes a user from the active users list
-         * Notifies all clients about the removal of the user
+         * All clients learn about the removal from the next presence update
          * @param user the username of the user to remove
-         * @throws IOException if an I/O error occurs while notifying clients
          */
-        public void removeFromActiveUsers(String user) throws IOException {
-            for (Map.Entry<String, ClientHandler> entry : clients.entrySet()) {
-                entry.getValue().writeToStream(new Object[]{Commands.REMOVE_ACTIVE_USER, user}); //notify each client
+        public void removeFromActiveUsers(String user) {
+            presence.remove(user); //cancels the login if it was not published yet
+            if (presenceTicker == null) {
+                publishPresence();
+            }
+            if (cluster != null) {
+                cluster.announce(user, false);
             }
         }
 
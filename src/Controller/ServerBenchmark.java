@@ -0,0 +1,568 @@
+package Controller;
+
+import Model.Commands;
+import Model.Message;
+import Model.User;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compares the ways the server can run its connections
+ * For every connection executor of the blocking transport, and for the NIO transport, the benchmark
+ * opens idle connections and reports how many were served and what they cost in threads and heap,
+ * then measures the latency of messages relayed between two users while the idle connections stay open
+ * and how many frames the server sent per flush
+ * The latency part needs the database configured in DataBaseManager and is skipped without one
+ * The soak mode sends messages over one object stream connection and reports heap use along the way,
+ * with the default reset policy (or none, to show the growth) it checks that a long session stays bounded
+ * The logins mode logs in many users at once, round after round, and reports the time until each got LOGIN_SUCCESSFUL,
+ * the first round finds the profile cache cold, meanwhile two other users keep chatting and the relay latency they see
+ * is compared with the latency without logins, it needs the database
+ * The chats mode opens and closes a chat in the chat registry while 10 up to 100,000 other chats are open,
+ * the time should not grow with the number of open chats, it runs without a server
+ * The cluster mode relays messages between pairs of users, first with everybody on one node, then with the two users
+ * of each pair on different nodes of a localhost cluster, and compares throughput and latency, it needs the database
+ * Usage: java Controller.ServerBenchmark [idle connections] [messages]
+ *        java Controller.ServerBenchmark soak [messages] [reset|never]
+ *        java Controller.ServerBenchmark logins [users] [rounds]
+ *        java Controller.ServerBenchmark chats
+ *        java Controller.ServerBenchmark cluster [nodes] [pairs] [messages]
+ */
+public class ServerBenchmark {
+    private static final String serverAddress = "127.0.0.1";
+    private static final int basePort = 2400;
+    private static final int handshakeTimeoutMillis = 5000;
+    private static final String benchPassword = Encryptor.encryptPassword("benchmark");
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("soak")) {
+            int messages = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+            boolean reset = args.length < 3 || !args[2].equals("never");
+            soak(messages, reset ? StreamResetPolicy.fromSystemProperties() : StreamResetPolicy.NEVER);
+            System.exit(0);
+        }
+        if (args.length > 0 && args[0].equals("chats")) {
+            chatRegistry();
+            System.exit(0);
+        }
+        if (args.length > 0 && args[0].equals("cluster")) {
+            Logger.getLogger("").setLevel(Level.OFF);
+            cluster(args.length > 1 ? Integer.parseInt(args[1]) : 3, args.length > 2 ? Integer.parseInt(args[2]) : 30,
+                    args.length > 3 ? Integer.parseInt(args[3]) : 2000);
+            System.exit(0);
+        }
+        if (args.length > 0 && args[0].equals("logins")) {
+            Logger.getLogger("").setLevel(Level.OFF);
+            loginStorm(args.length > 1 ? Integer.parseInt(args[1]) : 500, args.length > 2 ? Integer.parseInt(args[2]) : 3);
+            System.exit(0);
+        }
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        Logger.getLogger("").setLevel(Level.OFF); //keep the output readable
+
+        List<ServerConfig> configs = new ArrayList<>();
+        for (ServerConfig.ConnectionExecutor executor : ServerConfig.ConnectionExecutor.values()) {
+            configs.add(new ServerConfig.Builder()
+                    .withPort(basePort + configs.size())
+                    .withConnectionExecutor(executor)
+                    .build());
+        }
+        configs.add(new ServerConfig.Builder()
+                .withPort(basePort + configs.size())
+                .withTransport(ServerConfig.Transport.NIO)
+                .build());
+
+        System.out.printf("%-10s %-8s %10s %10s %10s %12s %10s %10s %10s %12s%n",
+                "transport", "executor", "served", "open ms", "threads", "heap MB", "p50 us", "p99 us", "max us", "frames/flush");
+        for (ServerConfig config : configs) {
+            run(config, connections, messages);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Runs both benchmark phases against one server configuration
+     * @param config server config
+     * @param connections number of idle connections
+     * @param messages number of messages for the latency phase
+     */
+    private static void run(ServerConfig config, int connections, int messages) throws Exception {
+        Server server = new Server(config);
+        server.start();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        long heapBefore = usedHeap();
+
+        List<Socket> idle = Collections.synchronizedList(new ArrayList<>());
+        long start = System.nanoTime();
+        int served = openIdleConnections(config.getPort(), connections, idle);
+        long openMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+        long heapMb = (usedHeap() - heapBefore) / (1024 * 1024);
+
+        long[] latencies = measureLatency(config.getPort(), messages);
+        String executor = config.getTransport() == ServerConfig.Transport.NIO ? "-" : config.getConnectionExecutor().name();
+        if (latencies.length == 0) {
+            System.out.printf("%-10s %-8s %10d %10d %10d %12d %10s %10s %10s %12s%n",
+                    config.getTransport(), executor, served, openMillis, threads, heapMb, "n/a", "n/a", "n/a", "n/a");
+        } else {
+            System.out.printf("%-10s %-8s %10d %10d %10d %12d %10d %10d %10d %12.2f%n",
+                    config.getTransport(), executor, served, openMillis, threads, heapMb,
+                    percentile(latencies, 0.50), percentile(latencies, 0.99), latencies[latencies.length - 1],
+                    server.getFlushStats().getFramesPerFlush());
+        }
+
+        for (Socket socket : idle) {
+            socket.close();
+        }
+        server.shutdown();
+        Thread.sleep(2000); //let the handler threads of this run exit before the next one counts threads
+    }
+
+    /**
+     * Opens connections in parallel and counts the ones whose handshake the server answered
+     * @param port server port
+     * @param connections number of connections to open
+     * @param opened receives every opened socket so it can be closed later
+     * @return number of served connections
+     */
+    private static int openIdleConnections(int port, int connections, List<Socket> opened) throws InterruptedException {
+        List<Future<Boolean>> results = new ArrayList<>();
+        try (ExecutorService openers = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < connections; i++) {
+                results.add(openers.submit(() -> {
+                    Socket socket = new Socket(serverAddress, port);
+                    opened.add(socket);
+                    socket.setSoTimeout(handshakeTimeoutMillis);
+                    WireProtocol.connect(socket, new BinaryFrameCodec());
+                    socket.setSoTimeout(0);
+                    return true;
+                }));
+            }
+        }
+        int served = 0;
+        for (Future<Boolean> result : results) {
+            try {
+                if (result.get()) served++;
+            } catch (Exception e) {
+                //refused, reset or timed out while queued
+            }
+        }
+        return served;
+    }
+
+    /**
+     * Logs in two users and measures how long it takes the server to relay a message from one to the other
+     * @param port server port
+     * @param messages number of messages
+     * @return sorted latencies in microseconds, empty if the users could not log in
+     */
+    private static long[] measureLatency(int port, int messages) {
+        try (Session sender = Session.open(port, "bench_sender");
+             Session receiver = Session.open(port, "bench_receiver")) {
+            long[] latencies = new long[messages];
+            for (int i = 0; i < messages; i++) {
+                Message message = new Message.Builder()
+                        .withText(Long.toString(System.nanoTime()))
+                        .withSentBy(sender.username)
+                        .addRecipients(List.of(receiver.username))
+                        .withSendTime("benchmark")
+                        .build();
+                sender.connection.write(new Object[]{Commands.SEND_MESSAGE_REQUEST, message});
+                Message received = (Message) receiver.awaitCommand(Commands.SHOW_MESSAGE)[1];
+                latencies[i] = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - Long.parseLong(received.getText()));
+            }
+            Arrays.sort(latencies);
+            return latencies;
+        } catch (IOException | RuntimeException e) {
+            return new long[0]; //no database
+        }
+    }
+
+    /**
+     * Sends messages over one object stream connection and prints the heap used by both ends as it goes
+     * @param messages number of messages
+     * @param policy reset policy of the sending side
+     */
+    private static void soak(int messages, StreamResetPolicy policy) throws Exception {
+        try (ServerSocket listener = new ServerSocket(0)) {
+            Socket receiverSocket = new Socket(serverAddress, listener.getLocalPort());
+            Socket senderSocket = listener.accept();
+            //both constructors wait for the other side's stream header
+            CompletableFuture<LegacyStreamConnection> receiverFuture = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return new LegacyStreamConnection(receiverSocket, receiverSocket.getInputStream());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            LegacyStreamConnection sender = new LegacyStreamConnection(senderSocket, senderSocket.getInputStream(), policy);
+            LegacyStreamConnection receiver = receiverFuture.get();
+
+            Thread reader = new Thread(() -> {
+                try {
+                    for (int i = 0; i < messages; i++) {
+                        receiver.read();
+                    }
+                } catch (IOException e) {
+                    System.out.println("Receiver failed: " + e);
+                }
+            });
+            reader.start();
+
+            System.out.printf("%12s %12s %16s %10s%n", "messages", "heap MB", "retained bytes", "resets");
+            int step = Math.max(1, messages / 10);
+            for (int i = 1; i <= messages; i++) {
+                Message message = new Message.Builder()
+                        .withText("soak message " + i)
+                        .withSentBy("soak_sender")
+                        .addRecipients(List.of("soak_receiver"))
+                        .withSendTime("now")
+                        .build();
+                sender.write(new Object[]{Commands.SHOW_MESSAGE, message});
+                if (i % step == 0) {
+                    System.out.printf("%12d %12d %16d %10d%n", i, usedHeap() / (1024 * 1024), sender.getRetainedBytes(), sender.getResetCount());
+                }
+            }
+            reader.join();
+            sender.close();
+            receiver.close();
+        }
+    }
+
+    /**
+     * Logs in every user at the same time and prints percentiles of the time until LOGIN_SUCCESSFUL arrived
+     * @param users number of users
+     * @param rounds number of login storms
+     */
+    private static void loginStorm(int users, int rounds) throws Exception {
+        ServerConfig config = new ServerConfig.Builder().withPort(basePort + 10).withTransport(ServerConfig.Transport.NIO).build();
+        Server server = new Server(config);
+        server.start();
+        CredentialVerifier verifier = server.getCredentialVerifier();
+        try (Session sender = Session.open(config.getPort(), "bench_sender");
+             Session receiver = Session.open(config.getPort(), "bench_receiver")) {
+            List<String> usernames = new ArrayList<>();
+            for (int i = 0; i < users; i++) {
+                usernames.add("bench_login_" + i);
+                Session.open(config.getPort(), usernames.get(i)).close(); //registers the user the first time
+            }
+            System.out.printf("%-6s %8s %10s %10s %10s %8s %12s %12s %10s %10s%n",
+                    "round", "logins", "p50 us", "p99 us", "max us", "retries", "relay p50", "relay p99", "wait ms", "hash ms");
+            CompletableFuture<Void> idle = CompletableFuture.runAsync(() -> sleepQuietly(1000));
+            long[] baseline = relayUntil(sender, receiver, idle);
+            System.out.printf("%-6s %8d %10s %10s %10s %8s %12d %12d %10s %10s%n", "idle", 0, "-", "-", "-", "-",
+                    percentile(baseline, 0.50), percentile(baseline, 0.99), "-", "-");
+            for (int round = 1; round <= rounds; round++) {
+                Thread.sleep(500); //let the logouts of the last round settle
+                long[] latencies = new long[users];
+                LongAdder retries = new LongAdder();
+                List<Future<?>> results = new ArrayList<>();
+                CompletableFuture<Void> storm = new CompletableFuture<>();
+                CompletableFuture<long[]> relay = CompletableFuture.supplyAsync(() -> relayUntil(sender, receiver, storm));
+                try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+                    for (int i = 0; i < users; i++) {
+                        int index = i;
+                        results.add(clients.submit(() -> {
+                            try (Session session = Session.connect(config.getPort(), usernames.get(index))) {
+                                long start = System.nanoTime();
+                                while (true) {
+                                    session.connection.write(new Object[]{Commands.LOGIN_REQUEST, new User(session.username, benchPassword)});
+                                    Object[] reply = session.awaitCommand(Commands.LOGIN_SUCCESSFUL, Commands.LOGIN_UNSUCCESSFUL, Commands.RETRY_LATER);
+                                    if (reply[0] == Commands.LOGIN_SUCCESSFUL) {
+                                        break;
+                                    }
+                                    if (reply[0] == Commands.LOGIN_UNSUCCESSFUL) {
+                                        throw new IOException("Could not log in " + session.username);
+                                    }
+                                    retries.increment();
+                                    Thread.sleep((Long) reply[2]);
+                                }
+                                latencies[index] = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+                            }
+                            return null;
+                        }));
+                    }
+                }
+                storm.complete(null);
+                for (Future<?> result : results) {
+                    result.get();
+                }
+                long[] relayed = relay.get();
+                Arrays.sort(latencies);
+                System.out.printf("%-6d %8d %10d %10d %10d %8d %12d %12d %10.1f %10.1f%n", round, users, percentile(latencies, 0.50), percentile(latencies, 0.99),
+                        latencies[users - 1], retries.sum(), percentile(relayed, 0.50), percentile(relayed, 0.99),
+                        verifier.getAverageQueueWaitMillis(), verifier.getAverageHashMillis());
+            }
+            System.out.printf("profile cache hit ratio %.2f, credential checks rejected %d, longest queue wait %.1f ms%n",
+                    DataBaseManager.getInstance().getProfileCache().getHitRatio(), verifier.getRejectedCount(), verifier.getMaxQueueWaitMillis());
+        } catch (IOException | ExecutionException e) {
+            System.out.println("The login benchmark needs the database: " + e.getMessage());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Relays messages between pairs of users on a single node and then on a cluster of nodes
+     * In the cluster the receiver of every pair is on the node after the sender's, so every message crosses a node link
+     * @param nodes number of nodes in the cluster
+     * @param pairs number of sender and receiver pairs, each sends its messages one at a time
+     * @param messages messages per pair
+     */
+    private static void cluster(int nodes, int pairs, int messages) throws Exception {
+        System.out.printf("%-6s %8s %10s %12s %10s %10s %12s%n", "nodes", "pairs", "messages", "msgs/s", "p50 us", "p99 us", "forwarded");
+        for (int size : nodes > 1 ? new int[]{1, nodes} : new int[]{1}) {
+            List<Server> servers = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                ServerConfig.Builder builder = new ServerConfig.Builder()
+                        .withPort(basePort + 20 + i)
+                        .withTransport(ServerConfig.Transport.NIO)
+                        .withNodeId("bench-" + i);
+                if (size > 1) {
+                    builder.withClusterPort(basePort + 40 + i).withClusterSecret("bench-cluster");
+                    for (int peer = 0; peer < size; peer++) {
+                        builder.addClusterPeer(new InetSocketAddress(serverAddress, basePort + 40 + peer));
+                    }
+                }
+                Server server = new Server(builder.build());
+                server.start();
+                servers.add(server);
+            }
+            List<Session> sessions = new ArrayList<>();
+            try {
+                awaitCondition(() -> servers.stream().allMatch(server -> server.getCluster() == null || server.getCluster().getMembers().size() == size - 1));
+                List<Session[]> sessionPairs = new ArrayList<>();
+                for (int i = 0; i < pairs; i++) {
+                    Session sender = Session.open(basePort + 20 + i % size, "bench_cluster_sender_" + i);
+                    sessions.add(sender);
+                    Session receiver = Session.open(basePort + 20 + (i + 1) % size, "bench_cluster_receiver_" + i);
+                    sessions.add(receiver);
+                    sessionPairs.add(new Session[]{sender, receiver});
+                    Server senderNode = servers.get(i % size);
+                    awaitCondition(() -> senderNode.getCluster() == null || senderNode.getCluster().nodeOf(receiver.username) != null); //the login reached the other node
+                }
+
+                long[] latencies = new long[pairs * messages];
+                List<Future<?>> results = new ArrayList<>();
+                long start = System.nanoTime();
+                try (ExecutorService senders = Executors.newVirtualThreadPerTaskExecutor()) {
+                    for (int i = 0; i < pairs; i++) {
+                        int pair = i;
+                        results.add(senders.submit(() -> {
+                            Session sender = sessionPairs.get(pair)[0];
+                            Session receiver = sessionPairs.get(pair)[1];
+                            for (int m = 0; m < messages; m++) {
+                                Message message = new Message.Builder()
+                                        .withText(Long.toString(System.nanoTime()))
+                                        .withSentBy(sender.username)
+                                        .addRecipients(List.of(receiver.username))
+                                        .withSendTime("benchmark")
+                                        .build();
+                                sender.connection.write(new Object[]{Commands.SEND_MESSAGE_REQUEST, message});
+                                Message received = (Message) receiver.awaitCommand(Commands.SHOW_MESSAGE)[1];
+                                latencies[pair * messages + m] = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - Long.parseLong(received.getText()));
+                            }
+                            return null;
+                        }));
+                    }
+                }
+                for (Future<?> result : results) {
+                    result.get();
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                long forwarded = servers.stream().filter(server -> server.getCluster() != null).mapToLong(server -> server.getCluster().getForwardedCount()).sum();
+                Arrays.sort(latencies);
+                System.out.printf("%-6d %8d %10d %12.0f %10d %10d %12d%n", size, pairs, latencies.length, latencies.length / seconds,
+                        percentile(latencies, 0.50), percentile(latencies, 0.99), forwarded);
+            } catch (IOException | ExecutionException e) {
+                System.out.println("The cluster benchmark needs the database and free ports: " + e.getMessage());
+                return;
+            } finally {
+                sessions.forEach(Session::close);
+                servers.forEach(Server::shutdown);
+                Thread.sleep(1000); //let the ports close before the next run
+            }
+        }
+    }
+
+    /**
+     * Waits up to ten seconds for a condition
+     * @param condition the condition
+     * @throws IOException if it does not become true in time
+     */
+    private static void awaitCondition(BooleanSupplier condition) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new IOException("The cluster did not settle in time!");
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * Times opening and closing one chat while more and more other chats are open
+     */
+    private static void chatRegistry() {
+        System.out.printf("%-12s %14s %14s%n", "open chats", "register ns", "remove ns");
+        int operations = 200_000;
+        for (int open : new int[]{10, 1_000, 100_000}) {
+            ChatRegistry registry = new ChatRegistry();
+            for (int i = 0; i < open; i++) {
+                registry.register(List.of("bench_user_" + i, "bench_peer_" + i));
+            }
+            List<List<String>> chats = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                chats.add(List.of("bench_peer_" + i, "bench_other_" + i)); //not open yet
+            }
+            for (int warmup = 0; warmup < 5; warmup++) {
+                for (List<String> chat : chats) {
+                    registry.register(chat);
+                    registry.remove(chat);
+                }
+            }
+            long registerNanos = 0;
+            long removeNanos = 0;
+            for (int i = 0; i < operations; i++) {
+                List<String> chat = chats.get(i % chats.size());
+                long start = System.nanoTime();
+                registry.register(chat);
+                long registered = System.nanoTime();
+                registry.remove(chat.reversed()); //the same chat, members in the other order
+                removeNanos += System.nanoTime() - registered;
+                registerNanos += registered - start;
+            }
+            System.out.printf("%-12d %14d %14d%n", open, registerNanos / operations, removeNanos / operations);
+        }
+    }
+
+    /**
+     * Sends messages from one session to the other, one at a time, until the given future is done, at least one
+     * @param sender the sending session
+     * @param receiver the receiving session
+     * @param until completed when to stop
+     * @return sorted latencies in microseconds
+     */
+    private static long[] relayUntil(Session sender, Session receiver, CompletableFuture<?> until) {
+        List<Long> latencies = new ArrayList<>();
+        try {
+            do {
+                Message message = new Message.Builder()
+                        .withText(Long.toString(System.nanoTime()))
+                        .withSentBy(sender.username)
+                        .addRecipients(List.of(receiver.username))
+                        .withSendTime("benchmark")
+                        .build();
+                sender.connection.write(new Object[]{Commands.SEND_MESSAGE_REQUEST, message});
+                Message received = (Message) receiver.awaitCommand(Commands.SHOW_MESSAGE)[1];
+                latencies.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - Long.parseLong(received.getText())));
+            } while (!until.isDone());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))];
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        System.gc();
+        Thread.sleep(100);
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * A logged in benchmark user
+     */
+    private static class Session implements AutoCloseable {
+        private final String username;
+        private final BlockingConnection connection;
+
+        private Session(String username, BlockingConnection connection) {
+            this.username = username;
+            this.connection = connection;
+        }
+
+        /**
+         * Registers the user, or logs in if the user already exists
+         * @param port server port
+         * @param username the username
+         * @return the logged in session
+         * @throws IOException if the user could not log in
+         */
+        static Session open(int port, String username) throws IOException {
+            Session session = connect(port, username);
+            session.connection.write(new Object[]{Commands.REGISTRATION_REQUEST, new User(username, benchPassword, "Bench", "User", null)});
+            if (session.awaitCommand(Commands.REGISTRATION_SUCCESSFUL, Commands.REGISTRATION_UNSUCCESSFUL)[0] == Commands.REGISTRATION_SUCCESSFUL) {
+                return session;
+            }
+            session.close();
+
+            session = connect(port, username);
+            session.connection.write(new Object[]{Commands.LOGIN_REQUEST, new User(username, benchPassword)});
+            if (session.awaitCommand(Commands.LOGIN_SUCCESSFUL, Commands.LOGIN_UNSUCCESSFUL)[0] != Commands.LOGIN_SUCCESSFUL) {
+                session.close();
+                throw new IOException("Could not log in " + username);
+            }
+            return session;
+        }
+
+        private static Session connect(int port, String username) throws IOException {
+            Socket socket = new Socket(serverAddress, port);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(handshakeTimeoutMillis);
+            return new Session(username, WireProtocol.connect(socket, new BinaryFrameCodec()));
+        }
+
+        /**
+         * Reads commands until one of the expected ones arrives
+         * @param expected the commands to wait for
+         * @return the command that arrived
+         * @throws IOException if the connection fails or times out
+         */
+        Object[] awaitCommand(Commands... expected) throws IOException {
+            while (true) {
+                Object[] command = connection.read();
+                for (Commands commands : expected) {
+                    if (command[0] == commands) {
+                        return command;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,771 @@
+package Controller;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds the settings the Server is started with
+ * Instances are created through the Builder
+ */
+public class ServerConfig {
+
+    /**
+     * How client connections are served
+     * BLOCKING keeps one handler thread per connection, NIO multiplexes all connections over a few event loops
+     */
+    public enum Transport {
+        BLOCKING,
+        NIO
+    }
+
+    /**
+     * Which executor runs the ClientHandler of each connection with the blocking transport
+     * CACHED creates a platform thread per connection, BOUNDED caps the platform threads and queues the rest,
+     * VIRTUAL runs every connection on its own virtual thread
+     */
+    public enum ConnectionExecutor {
+        CACHED,
+        BOUNDED,
+        VIRTUAL
+    }
+
+    /**
+     * What happens when a client's outbound queue is full
+     * DROP_PRESENCE drops active user updates and drops the client for anything else, DISCONNECT drops the client,
+     * BLOCK makes the sender wait for space and drops a client that stays full past the timeout
+     */
+    public enum OverflowPolicy {
+        DROP_PRESENCE,
+        DISCONNECT,
+        BLOCK
+    }
+
+    /**
+     * How outbound commands are flushed
+     * LATENCY flushes as soon as a client's queue is empty and disables Nagle's algorithm,
+     * THROUGHPUT waits up to the flush deadline for more commands and leaves Nagle's algorithm on
+     */
+    public enum FlushMode {
+        LATENCY,
+        THROUGHPUT
+    }
+
+    private final int port;
+    private final Transport transport;
+    private final int eventLoops;
+    private final int workerThreads;
+    private final ConnectionExecutor connectionExecutor;
+    private final int maxConnectionThreads;
+    private final int connectionQueueCapacity;
+    private final StreamResetPolicy streamResetPolicy;
+    private final int outboundQueueCapacity;
+    private final OverflowPolicy overflowPolicy;
+    private final long overflowTimeoutMillis;
+    private final FlushMode flushMode;
+    private final long flushDeadlineMicros;
+    private final long presenceWindowMillis;
+    private final int storedPageMessages;
+    private final long storedPageBytes;
+    private final int thumbnailCacheEntries;
+    private final Path thumbnailDir;
+    private final int thumbnailThreads;
+    private final long maxAttachmentBytes;
+    private final int attachmentChunkBytes;
+    private final int credentialThreads;
+    private final int credentialQueueCapacity;
+    private final int passwordIterations;
+    private final String nodeId;
+    private final int clusterPort;
+    private final String clusterBindAddress;
+    private final String clusterSecret;
+    private final List<InetSocketAddress> clusterPeers;
+
+    /**
+     * Private constructor to enforce the use of the Builder
+     * @param builder builder instance
+     */
+    private ServerConfig(Builder builder) {
+        this.port = builder.port;
+        this.transport = builder.transport;
+        this.eventLoops = builder.eventLoops;
+        this.workerThreads = builder.workerThreads;
+        this.connectionExecutor = builder.connectionExecutor;
+        this.maxConnectionThreads = builder.maxConnectionThreads;
+        this.connectionQueueCapacity = builder.connectionQueueCapacity;
+        this.streamResetPolicy = builder.streamResetPolicy;
+        this.outboundQueueCapacity = builder.outboundQueueCapacity;
+        this.overflowPolicy = builder.overflowPolicy;
+        this.overflowTimeoutMillis = builder.overflowTimeoutMillis;
+        this.flushMode = builder.flushMode;
+        this.flushDeadlineMicros = builder.flushDeadlineMicros;
+        this.presenceWindowMillis = builder.presenceWindowMillis;
+        this.storedPageMessages = builder.storedPageMessages;
+        this.storedPageBytes = builder.storedPageBytes;
+        this.thumbnailCacheEntries = builder.thumbnailCacheEntries;
+        this.thumbnailDir = builder.thumbnailDir;
+        this.thumbnailThreads = builder.thumbnailThreads;
+        this.maxAttachmentBytes = builder.maxAttachmentBytes;
+        this.attachmentChunkBytes = builder.attachmentChunkBytes;
+        this.credentialThreads = builder.credentialThreads;
+        this.credentialQueueCapacity = builder.credentialQueueCapacity;
+        this.passwordIterations = builder.passwordIterations;
+        this.nodeId = builder.nodeId != null ? builder.nodeId : "node-" + builder.port;
+        this.clusterPort = builder.clusterPort;
+        this.clusterBindAddress = builder.clusterBindAddress;
+        this.clusterSecret = builder.clusterSecret;
+        this.clusterPeers = List.copyOf(builder.clusterPeers);
+    }
+
+    /**
+     * Creates a config with all default values
+     * @return the default config
+     */
+    public static ServerConfig defaults() {
+        return new Builder().build();
+    }
+
+    /**
+     * Creates a config from system properties (e.g. -Dmessenger.transport=nio), falling back to the defaults
+     * @return the config
+     */
+    public static ServerConfig fromSystemProperties() {
+        Builder builder = new Builder();
+        builder.withPort(Integer.getInteger("messenger.port", builder.port));
+        builder.withTransport(Transport.valueOf(System.getProperty("messenger.transport", builder.transport.name()).toUpperCase()));
+        builder.withEventLoops(Integer.getInteger("messenger.eventLoops", builder.eventLoops));
+        builder.withWorkerThreads(Integer.getInteger("messenger.workerThreads", builder.workerThreads));
+        builder.withConnectionExecutor(ConnectionExecutor.valueOf(System.getProperty("messenger.executor", builder.connectionExecutor.name()).toUpperCase()));
+        builder.withMaxConnectionThreads(Integer.getInteger("messenger.maxConnectionThreads", builder.maxConnectionThreads));
+        builder.withConnectionQueueCapacity(Integer.getInteger("messenger.connectionQueueCapacity", builder.connectionQueueCapacity));
+        builder.withOutboundQueueCapacity(Integer.getInteger("messenger.outboundQueueCapacity", builder.outboundQueueCapacity));
+        builder.withOverflowPolicy(OverflowPolicy.valueOf(System.getProperty("messenger.overflowPolicy", builder.overflowPolicy.name()).toUpperCase()));
+        builder.withOverflowTimeoutMillis(Long.getLong("messenger.overflowTimeoutMillis", builder.overflowTimeoutMillis));
+        builder.withFlushMode(FlushMode.valueOf(System.getProperty("messenger.flushMode", builder.flushMode.name()).toUpperCase()));
+        builder.withFlushDeadlineMicros(Long.getLong("messenger.flushDeadlineMicros", builder.flushDeadlineMicros));
+        builder.withPresenceWindowMillis(Long.getLong("messenger.presenceWindowMillis", builder.presenceWindowMillis));
+        builder.withStoredPageMessages(Integer.getInteger("messenger.storedPageMessages", builder.storedPageMessages));
+        builder.withStoredPageBytes(Long.getLong("messenger.storedPageBytes", builder.storedPageBytes));
+        builder.withThumbnailCacheEntries(Integer.getInteger("messenger.thumbnailCacheEntries", builder.thumbnailCacheEntries));
+        String thumbnailDir = System.getProperty("messenger.thumbnailDir");
+        builder.withThumbnailDir(thumbnailDir == null ? null : Path.of(thumbnailDir));
+        builder.withThumbnailThreads(Integer.getInteger("messenger.thumbnailThreads", builder.thumbnailThreads));
+        builder.withMaxAttachmentBytes(Long.getLong("messenger.maxAttachmentBytes", builder.maxAttachmentBytes));
+        builder.withAttachmentChunkBytes(Integer.getInteger("messenger.attachmentChunkBytes", builder.attachmentChunkBytes));
+        builder.withCredentialThreads(Integer.getInteger("messenger.credentialThreads", builder.credentialThreads));
+        builder.withCredentialQueueCapacity(Integer.getInteger("messenger.credentialQueueCapacity", builder.credentialQueueCapacity));
+        builder.withPasswordIterations(Integer.getInteger("messenger.passwordIterations", builder.passwordIterations));
+        builder.withNodeId(System.getProperty("messenger.nodeId"));
+        builder.withClusterPort(Integer.getInteger("messenger.clusterPort", builder.clusterPort));
+        builder.withClusterBindAddress(System.getProperty("messenger.clusterBindAddress"));
+        builder.withClusterSecret(System.getProperty("messenger.clusterSecret"));
+        for (String peer : System.getProperty("messenger.clusterPeers", "").split(",")) {
+            if (!peer.isBlank()) {
+                int colon = peer.lastIndexOf(':');
+                builder.addClusterPeer(new InetSocketAddress(peer.substring(0, colon).trim(), Integer.parseInt(peer.substring(colon + 1).trim())));
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return the transport used for client connections
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return the number of selector threads used by the NIO transport
+     */
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    /**
+     * @return the number of threads that run client requests for the NIO transport
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * @return the executor that runs connections for the blocking transport
+     */
+    public ConnectionExecutor getConnectionExecutor() {
+        return connectionExecutor;
+    }
+
+    /**
+     * @return the maximum number of platform threads of the BOUNDED connection executor
+     */
+    public int getMaxConnectionThreads() {
+        return maxConnectionThreads;
+    }
+
+    /**
+     * @return how many connections the BOUNDED connection executor queues before it rejects new ones
+     */
+    public int getConnectionQueueCapacity() {
+        return connectionQueueCapacity;
+    }
+
+    /**
+     * @return when the object streams of old clients are reset
+     */
+    public StreamResetPolicy getStreamResetPolicy() {
+        return streamResetPolicy;
+    }
+
+    /**
+     * @return how many commands may wait to be written to one client
+     */
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    /**
+     * @return what happens when a client's outbound queue is full
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return how long a sender waits for space in a full outbound queue before the client is disconnected
+     */
+    public long getOverflowTimeoutMillis() {
+        return overflowTimeoutMillis;
+    }
+
+    /**
+     * @return how outbound commands are flushed
+     */
+    public FlushMode getFlushMode() {
+        return flushMode;
+    }
+
+    /**
+     * @return the longest time a written command may wait for a flush while more commands keep coming
+     */
+    public long getFlushDeadlineMicros() {
+        return flushDeadlineMicros;
+    }
+
+    /**
+     * @return how long logins and logouts are collected before they are published as one presence update, 0 publishes each at once
+     */
+    public long getPresenceWindowMillis() {
+        return presenceWindowMillis;
+    }
+
+    /**
+     * @return most stored messages sent to a client in one page
+     */
+    public int getStoredPageMessages() {
+        return storedPageMessages;
+    }
+
+    /**
+     * @return text and image bytes after which a page of stored messages is closed
+     */
+    public long getStoredPageBytes() {
+        return storedPageBytes;
+    }
+
+    /**
+     * @return thumbnails kept in memory
+     */
+    public int getThumbnailCacheEntries() {
+        return thumbnailCacheEntries;
+    }
+
+    /**
+     * @return directory thumbnails are persisted in, null if they are kept in memory only
+     */
+    public Path getThumbnailDir() {
+        return thumbnailDir;
+    }
+
+    /**
+     * @return threads that render thumbnails
+     */
+    public int getThumbnailThreads() {
+        return thumbnailThreads;
+    }
+
+    /**
+     * @return largest attachment accepted from a client, in bytes
+     */
+    public long getMaxAttachmentBytes() {
+        return maxAttachmentBytes;
+    }
+
+    /**
+     * @return bytes sent in one attachment chunk, also the largest chunk accepted
+     */
+    public int getAttachmentChunkBytes() {
+        return attachmentChunkBytes;
+    }
+
+    /**
+     * @return threads that derive and verify passwords
+     */
+    public int getCredentialThreads() {
+        return credentialThreads;
+    }
+
+    /**
+     * @return logins and registrations that may wait for a credential thread before new ones are told to retry later
+     */
+    public int getCredentialQueueCapacity() {
+        return credentialQueueCapacity;
+    }
+
+    /**
+     * @return PBKDF2 iterations passwords are stored with
+     */
+    public int getPasswordIterations() {
+        return passwordIterations;
+    }
+
+    /**
+     * @return the name of this node in a cluster
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * @return the port other nodes connect to, 0 if the server runs alone
+     */
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    /**
+     * @return the address the cluster port is bound to, null for the loopback address
+     */
+    public String getClusterBindAddress() {
+        return clusterBindAddress;
+    }
+
+    /**
+     * @return the secret every node of the cluster has to present
+     */
+    public String getClusterSecret() {
+        return clusterSecret;
+    }
+
+    /**
+     * @return cluster addresses of the other nodes
+     */
+    public List<InetSocketAddress> getClusterPeers() {
+        return clusterPeers;
+    }
+
+    /**
+     * @return true if client sockets should disable Nagle's algorithm
+     */
+    public boolean isTcpNoDelay() {
+        return flushMode == FlushMode.LATENCY;
+    }
+
+    /**
+     * Builder class for constructing a ServerConfig object
+     */
+    public static class Builder {
+        private int port = 2323;
+        private Transport transport = Transport.BLOCKING;
+        private int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        private int workerThreads = Math.max(4, Runtime.getRuntime().availableProcessors() * 4);
+        private ConnectionExecutor connectionExecutor = ConnectionExecutor.CACHED;
+        private int maxConnectionThreads = 256;
+        private int connectionQueueCapacity = 1024;
+        private StreamResetPolicy streamResetPolicy = StreamResetPolicy.fromSystemProperties();
+        private int outboundQueueCapacity = 1024;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_PRESENCE;
+        private long overflowTimeoutMillis = 5000;
+        private FlushMode flushMode = FlushMode.LATENCY;
+        private long flushDeadlineMicros = 200;
+        private long presenceWindowMillis = 200;
+        private int storedPageMessages = 50;
+        private long storedPageBytes = 1024 * 1024;
+        private int thumbnailCacheEntries = 1024;
+        private Path thumbnailDir;
+        private int thumbnailThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        private long maxAttachmentBytes = 64L * 1024 * 1024;
+        private int attachmentChunkBytes = 256 * 1024;
+        private int credentialThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+        private int credentialQueueCapacity = 256;
+        private int passwordIterations = 100_000;
+        private String nodeId; //named after the port unless set
+        private int clusterPort;
+        private String clusterBindAddress; //loopback unless set
+        private String clusterSecret;
+        private final List<InetSocketAddress> clusterPeers = new ArrayList<>();
+
+        /**
+         * Sets the port the server listens on
+         * @param port the port
+         * @return the Builder instance
+         */
+        public Builder withPort(int port) {
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * Sets the transport used for client connections
+         * @param transport the transport
+         * @return the Builder instance
+         */
+        public Builder withTransport(Transport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * Sets the number of selector threads used by the NIO transport
+         * @param eventLoops number of event loops
+         * @return the Builder instance
+         */
+        public Builder withEventLoops(int eventLoops) {
+            if (eventLoops < 1) {
+                throw new IllegalArgumentException("At least one event loop is required!");
+            }
+            this.eventLoops = eventLoops;
+            return this;
+        }
+
+        /**
+         * Sets the number of threads that run client requests for the NIO transport
+         * @param workerThreads number of worker threads
+         * @return the Builder instance
+         */
+        public Builder withWorkerThreads(int workerThreads) {
+            if (workerThreads < 1) {
+                throw new IllegalArgumentException("At least one worker thread is required!");
+            }
+            this.workerThreads = workerThreads;
+            return this;
+        }
+
+        /**
+         * Sets the executor that runs connections for the blocking transport
+         * @param connectionExecutor the executor type
+         * @return the Builder instance
+         */
+        public Builder withConnectionExecutor(ConnectionExecutor connectionExecutor) {
+            this.connectionExecutor = connectionExecutor;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of platform threads of the BOUNDED connection executor
+         * @param maxConnectionThreads number of threads
+         * @return the Builder instance
+         */
+        public Builder withMaxConnectionThreads(int maxConnectionThreads) {
+            if (maxConnectionThreads < 1) {
+                throw new IllegalArgumentException("At least one connection thread is required!");
+            }
+            this.maxConnectionThreads = maxConnectionThreads;
+            return this;
+        }
+
+        /**
+         * Sets how many connections the BOUNDED connection executor queues before it rejects new ones
+         * @param connectionQueueCapacity queue capacity
+         * @return the Builder instance
+         */
+        public Builder withConnectionQueueCapacity(int connectionQueueCapacity) {
+            if (connectionQueueCapacity < 0) {
+                throw new IllegalArgumentException("Queue capacity cannot be negative!");
+            }
+            this.connectionQueueCapacity = connectionQueueCapacity;
+            return this;
+        }
+
+        /**
+         * Sets when the object streams of old clients are reset
+         * @param streamResetPolicy the reset policy
+         * @return the Builder instance
+         */
+        public Builder withStreamResetPolicy(StreamResetPolicy streamResetPolicy) {
+            this.streamResetPolicy = streamResetPolicy;
+            return this;
+        }
+
+        /**
+         * Sets how many commands may wait to be written to one client
+         * @param outboundQueueCapacity queue capacity
+         * @return the Builder instance
+         */
+        public Builder withOutboundQueueCapacity(int outboundQueueCapacity) {
+            if (outboundQueueCapacity < 1) {
+                throw new IllegalArgumentException("Outbound queue capacity must be positive!");
+            }
+            this.outboundQueueCapacity = outboundQueueCapacity;
+            return this;
+        }
+
+        /**
+         * Sets what happens when a client's outbound queue is full
+         * @param overflowPolicy the policy
+         * @return the Builder instance
+         */
+        public Builder withOverflowPolicy(OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        /**
+         * Sets how long a sender waits for space in a full outbound queue before the client is disconnected
+         * @param overflowTimeoutMillis timeout in milliseconds
+         * @return the Builder instance
+         */
+        public Builder withOverflowTimeoutMillis(long overflowTimeoutMillis) {
+            if (overflowTimeoutMillis < 0) {
+                throw new IllegalArgumentException("Timeout cannot be negative!");
+            }
+            this.overflowTimeoutMillis = overflowTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * Sets how outbound commands are flushed
+         * @param flushMode the flush mode
+         * @return the Builder instance
+         */
+        public Builder withFlushMode(FlushMode flushMode) {
+            this.flushMode = flushMode;
+            return this;
+        }
+
+        /**
+         * Sets the longest time a written command may wait for a flush while more commands keep coming
+         * @param flushDeadlineMicros deadline in microseconds
+         * @return the Builder instance
+         */
+        public Builder withFlushDeadlineMicros(long flushDeadlineMicros) {
+            if (flushDeadlineMicros < 0) {
+                throw new IllegalArgumentException("Flush deadline cannot be negative!");
+            }
+            this.flushDeadlineMicros = flushDeadlineMicros;
+            return this;
+        }
+
+        /**
+         * Sets how long logins and logouts are collected before they are published as one presence update
+         * @param presenceWindowMillis window in milliseconds, 0 publishes every change at once
+         * @return the Builder instance
+         */
+        public Builder withPresenceWindowMillis(long presenceWindowMillis) {
+            if (presenceWindowMillis < 0) {
+                throw new IllegalArgumentException("Presence window cannot be negative!");
+            }
+            this.presenceWindowMillis = presenceWindowMillis;
+            return this;
+        }
+
+        /**
+         * Sets how many stored messages a client gets per page at login
+         * @param storedPageMessages messages per page
+         * @return the Builder instance
+         */
+        public Builder withStoredPageMessages(int storedPageMessages) {
+            if (storedPageMessages < 1) {
+                throw new IllegalArgumentException("Stored message pages need room for a message!");
+            }
+            this.storedPageMessages = storedPageMessages;
+            return this;
+        }
+
+        /**
+         * Sets how many bytes of text and images a page of stored messages may hold, a single larger message still gets its own page
+         * @param storedPageBytes bytes per page
+         * @return the Builder instance
+         */
+        public Builder withStoredPageBytes(long storedPageBytes) {
+            if (storedPageBytes < 1) {
+                throw new IllegalArgumentException("Stored message pages need room for a message!");
+            }
+            this.storedPageBytes = storedPageBytes;
+            return this;
+        }
+
+        /**
+         * Sets how many thumbnails are kept in memory
+         * @param thumbnailCacheEntries thumbnails in the cache
+         * @return the Builder instance
+         */
+        public Builder withThumbnailCacheEntries(int thumbnailCacheEntries) {
+            if (thumbnailCacheEntries < 1) {
+                throw new IllegalArgumentException("Thumbnail cache needs room for a thumbnail!");
+            }
+            this.thumbnailCacheEntries = thumbnailCacheEntries;
+            return this;
+        }
+
+        /**
+         * Sets the directory thumbnails are persisted in, so they survive a restart
+         * @param thumbnailDir the directory, null to keep thumbnails in memory only
+         * @return the Builder instance
+         */
+        public Builder withThumbnailDir(Path thumbnailDir) {
+            this.thumbnailDir = thumbnailDir;
+            return this;
+        }
+
+        /**
+         * Sets how many threads render thumbnails
+         * @param thumbnailThreads number of threads
+         * @return the Builder instance
+         */
+        public Builder withThumbnailThreads(int thumbnailThreads) {
+            if (thumbnailThreads < 1) {
+                throw new IllegalArgumentException("At least one thumbnail thread is required!");
+            }
+            this.thumbnailThreads = thumbnailThreads;
+            return this;
+        }
+
+        /**
+         * Sets the largest attachment a client may upload
+         * @param maxAttachmentBytes size in bytes
+         * @return the Builder instance
+         */
+        public Builder withMaxAttachmentBytes(long maxAttachmentBytes) {
+            if (maxAttachmentBytes < 1) {
+                throw new IllegalArgumentException("Attachments need room for a byte!");
+            }
+            this.maxAttachmentBytes = maxAttachmentBytes;
+            return this;
+        }
+
+        /**
+         * Sets the size of attachment chunks, a chunk has to fit in a frame with room to spare
+         * @param attachmentChunkBytes size in bytes
+         * @return the Builder instance
+         */
+        public Builder withAttachmentChunkBytes(int attachmentChunkBytes) {
+            if (attachmentChunkBytes < 1 || attachmentChunkBytes > WireProtocol.MAX_FRAME_LENGTH / 2) {
+                throw new IllegalArgumentException("Attachment chunks have to fit in a frame!");
+            }
+            this.attachmentChunkBytes = attachmentChunkBytes;
+            return this;
+        }
+
+        /**
+         * Sets how many threads derive and verify passwords, the CPU logins can take at most
+         * @param credentialThreads number of threads
+         * @return the Builder instance
+         */
+        public Builder withCredentialThreads(int credentialThreads) {
+            if (credentialThreads < 1) {
+                throw new IllegalArgumentException("At least one credential thread is required!");
+            }
+            this.credentialThreads = credentialThreads;
+            return this;
+        }
+
+        /**
+         * Sets how many logins and registrations may wait for a credential thread
+         * @param credentialQueueCapacity queue capacity
+         * @return the Builder instance
+         */
+        public Builder withCredentialQueueCapacity(int credentialQueueCapacity) {
+            if (credentialQueueCapacity < 0) {
+                throw new IllegalArgumentException("Queue capacity cannot be negative!");
+            }
+            this.credentialQueueCapacity = credentialQueueCapacity;
+            return this;
+        }
+
+        /**
+         * Sets the PBKDF2 iterations passwords are stored with, passwords stored with fewer are derived again at login
+         * @param passwordIterations number of iterations
+         * @return the Builder instance
+         */
+        public Builder withPasswordIterations(int passwordIterations) {
+            if (passwordIterations < 1) {
+                throw new IllegalArgumentException("At least one password iteration is required!");
+            }
+            this.passwordIterations = passwordIterations;
+            return this;
+        }
+
+        /**
+         * Sets the name of this node in a cluster, it has to be unique in the cluster
+         * @param nodeId the node id, null to name the node after its port
+         * @return the Builder instance
+         */
+        public Builder withNodeId(String nodeId) {
+            this.nodeId = nodeId;
+            return this;
+        }
+
+        /**
+         * Sets the port other nodes connect to
+         * @param clusterPort the port, 0 to run alone
+         * @return the Builder instance
+         */
+        public Builder withClusterPort(int clusterPort) {
+            if (clusterPort < 0) {
+                throw new IllegalArgumentException("Cluster port cannot be negative!");
+            }
+            this.clusterPort = clusterPort;
+            return this;
+        }
+
+        /**
+         * Sets the address the cluster port is bound to, nodes on other hosts need an address they can reach
+         * @param clusterBindAddress host name or address, null for the loopback address
+         * @return the Builder instance
+         */
+        public Builder withClusterBindAddress(String clusterBindAddress) {
+            this.clusterBindAddress = clusterBindAddress;
+            return this;
+        }
+
+        /**
+         * Sets the secret the nodes of a cluster present in their hello, it has to be the same on every node
+         * @param clusterSecret the secret
+         * @return the Builder instance
+         */
+        public Builder withClusterSecret(String clusterSecret) {
+            this.clusterSecret = clusterSecret;
+            return this;
+        }
+
+        /**
+         * Adds another node of the cluster, the list may name this node too
+         * @param clusterPeer cluster address of the node
+         * @return the Builder instance
+         */
+        public Builder addClusterPeer(InetSocketAddress clusterPeer) {
+            this.clusterPeers.add(clusterPeer);
+            return this;
+        }
+
+        /**
+         * Builds and returns the ServerConfig instance
+         * @return a new ServerConfig instance
+         */
+        public ServerConfig build() {
+            if (clusterPort > 0 && (clusterSecret == null || clusterSecret.isEmpty())) {
+                throw new IllegalArgumentException("A cluster needs a shared secret!");
+            }
+            return new ServerConfig(this);
+        }
+    }
+}
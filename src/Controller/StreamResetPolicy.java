@@ -0,0 +1,53 @@
+package Controller;
+
+/**
+ * Decides when a long-lived ObjectOutputStream is reset
+ * An object stream keeps a reference to every object it has written (and the reading side to every object it has read)
+ * until it is reset, so without a reset a chatty session holds on to every message it ever sent
+ * A reset costs the class descriptors being sent again, so it is done after a budget of bytes or objects is used up
+ */
+public class StreamResetPolicy {
+    public static final StreamResetPolicy NEVER = new StreamResetPolicy(Long.MAX_VALUE, Integer.MAX_VALUE);
+
+    private final long maxBytes;
+    private final int maxObjects;
+
+    /**
+     * @param maxBytes bytes that may be written between resets
+     * @param maxObjects objects that may be written between resets
+     */
+    public StreamResetPolicy(long maxBytes, int maxObjects) {
+        if (maxBytes < 1 || maxObjects < 1) {
+            throw new IllegalArgumentException("Reset budgets must be positive!");
+        }
+        this.maxBytes = maxBytes;
+        this.maxObjects = maxObjects;
+    }
+
+    /**
+     * Creates the policy from system properties, by default the stream is reset every 1 MB or 1000 objects
+     * @return the policy
+     */
+    public static StreamResetPolicy fromSystemProperties() {
+        return new StreamResetPolicy(
+                Long.getLong("messenger.streamResetBytes", 1024 * 1024),
+                Integer.getInteger("messenger.streamResetObjects", 1000));
+    }
+
+    /**
+     * @param bytesSinceReset bytes written since the last reset
+     * @param objectsSinceReset objects written since the last reset
+     * @return true if the stream should be reset now
+     */
+    public boolean shouldReset(long bytesSinceReset, int objectsSinceReset) {
+        return bytesSinceReset >= maxBytes || objectsSinceReset >= maxObjects;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getMaxObjects() {
+        return maxObjects;
+    }
+}
@@ -0,0 +1,205 @@
+package Controller;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Scales images from the attachment store down to thumbnails and keeps them as encoded PNG bytes
+ * A thumbnail is made once per content hash and size on a background pool, concurrent requests for one that is
+ * being made share it, and the results stay in a bounded LRU cache and, if a directory is given, on disk
+ */
+public class ThumbnailService {
+    private static final Logger logger = Logger.getLogger(ThumbnailService.class.getName());
+    private final AttachmentStore attachments;
+    private final Path directory; //null keeps thumbnails in memory only
+    private final ExecutorService renderers;
+    private final Map<String, byte[]> cache; //LRU, guarded by itself
+    private final Map<String, CompletableFuture<byte[]>> rendering = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder renders = new LongAdder();
+
+    /**
+     * @param attachments store the images are read from
+     * @param cacheEntries thumbnails kept in memory
+     * @param directory directory thumbnails are persisted in, null to keep them in memory only
+     * @param threads threads that render thumbnails
+     */
+    public ThumbnailService(AttachmentStore attachments, int cacheEntries, Path directory, int threads) {
+        this.attachments = attachments;
+        this.directory = directory;
+        this.renderers = Executors.newFixedThreadPool(threads, Thread.ofPlatform().name("Thumbnailer ", 0).daemon().factory());
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > cacheEntries;
+            }
+        };
+    }
+
+    /**
+     * Gets a thumbnail, rendering it in the background if it is not cached
+     * @param hash the hash of the image
+     * @param size width and height of the thumbnail
+     * @return completed with the PNG bytes of the thumbnail
+     */
+    public CompletableFuture<byte[]> thumbnail(String hash, int size) {
+        String key = hash + "@" + size;
+        byte[] cached;
+        synchronized (cache) {
+            cached = cache.get(key);
+        }
+        if (cached != null) {
+            hits.increment();
+            return CompletableFuture.completedFuture(cached);
+        }
+        CompletableFuture<byte[]> created = new CompletableFuture<>();
+        CompletableFuture<byte[]> running = rendering.putIfAbsent(key, created);
+        if (running != null) {
+            return running; //somebody else is making it already
+        }
+        try {
+            renderers.execute(() -> {
+                try {
+                    byte[] bytes = load(hash, size);
+                    synchronized (cache) {
+                        cache.put(key, bytes);
+                    }
+                    created.complete(bytes);
+                } catch (RuntimeException e) {
+                    created.completeExceptionally(e);
+                } finally {
+                    rendering.remove(key, created); //cached before it is removed here, so it is never made twice
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rendering.remove(key, created);
+            created.completeExceptionally(e);
+        }
+        return created;
+    }
+
+    /**
+     * Reads a persisted thumbnail or renders and persists a new one
+     * @param hash the hash of the image
+     * @param size width and height of the thumbnail
+     * @return the PNG bytes
+     */
+    private byte[] load(String hash, int size) {
+        try {
+            Path file = directory == null ? null : directory.resolve(Integer.toString(size)).resolve(hash + ".png");
+            if (file != null && Files.exists(file)) {
+                diskHits.increment();
+                return Files.readAllBytes(file);
+            }
+            byte[] bytes = render(hash, size);
+            if (file != null) {
+                Files.createDirectories(file.getParent());
+                Path temp = Files.createTempFile(file.getParent(), hash, ".tmp");
+                Files.write(temp, bytes);
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            return bytes;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Decodes the image and scales it to size x size
+     * @param hash the hash of the image
+     * @param size width and height of the thumbnail
+     * @return the PNG bytes
+     * @throws IOException if the image cannot be read or is not an image
+     */
+    private byte[] render(String hash, int size) throws IOException {
+        BufferedImage image = ImageIO.read(AttachmentStore.asInputStream(attachments.read(hash)));
+        if (image == null) {
+            throw new IOException("Attachment " + hash + " is not an image!");
+        }
+        byte[] thumbnail = encodeThumbnail(image, size);
+        renders.increment();
+        return thumbnail;
+    }
+
+    /**
+     * Scales an image to size x size and encodes it as PNG
+     * @param image the image
+     * @param size width and height of the thumbnail
+     * @return the PNG bytes
+     * @throws IOException if the thumbnail cannot be encoded
+     */
+    public static byte[] encodeThumbnail(BufferedImage image, int size) throws IOException {
+        BufferedImage thumbnail = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = thumbnail.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, size, size, null);
+        } finally {
+            graphics.dispose();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(thumbnail, "png", out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Gets a thumbnail and waits for it
+     * @param hash the hash of the image
+     * @param size width and height of the thumbnail
+     * @return the PNG bytes, or null if the image could not be read
+     */
+    public byte[] thumbnailNow(String hash, int size) {
+        try {
+            return thumbnail(hash, size).join();
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Could not make a thumbnail of " + hash, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stops the render threads
+     */
+    public void shutdown() {
+        renderers.shutdownNow();
+    }
+
+    /**
+     * @return thumbnails served from memory
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return thumbnails read back from disk
+     */
+    public long getDiskHitCount() {
+        return diskHits.sum();
+    }
+
+    /**
+     * @return thumbnails rendered
+     */
+    public long getRenderCount() {
+        return renders.sum();
+    }
+}
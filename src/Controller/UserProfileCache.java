@@ -0,0 +1,193 @@
+package Controller;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the profiles of recently seen users in memory so a login does not have to ask the database
+ * The cache holds a bounded number of profiles in LRU order, each for at most the time to live,
+ * a profile is invalidated explicitly when the user registers or changes it
+ * Concurrent lookups of a profile that is not cached share one load
+ */
+public class UserProfileCache {
+
+    /**
+     * Loads a profile from the database
+     */
+    @FunctionalInterface
+    public interface Loader {
+        /**
+         * @param username the user
+         * @return the profile, or null if there is no such user
+         */
+        Profile load(String username);
+    }
+
+    /**
+     * What a login needs to know about a user
+     * @param username the username
+     * @param firstName the first name
+     * @param lastName the last name
+     * @param password the password hash
+     * @param imageHash the hash of the profile image, or null
+     */
+    public record Profile(String username, String firstName, String lastName, String password, String imageHash) {
+        /**
+         * Compares in constant time, so the time taken does not tell how much of the hash was right
+         * A password stored with PBKDF2 is derived again first, which is slow on purpose
+         * @param password the password hash sent by the client
+         * @return true if it is the password of the user
+         */
+        public boolean hasPassword(String password) {
+            return Encryptor.matchesPassword(password, this.password);
+        }
+    }
+
+    private record Entry(Profile profile, long loadedAt) {
+    }
+
+    private final Loader loader;
+    private final long ttlNanos;
+    private final Map<String, Entry> cache; //LRU, guarded by itself
+    private final Map<String, CompletableFuture<Profile>> loading = new ConcurrentHashMap<>();
+    private final AtomicLong invalidations = new AtomicLong(); //a load that overlaps an invalidation is not cached
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+
+    /**
+     * @param loader loads profiles that are not cached
+     * @param maxEntries profiles kept at most
+     * @param ttlMillis how long a profile is used before it is loaded again
+     */
+    public UserProfileCache(Loader loader, int maxEntries, long ttlMillis) {
+        if (maxEntries < 1 || ttlMillis < 1) {
+            throw new IllegalArgumentException("Invalid user profile cache settings!");
+        }
+        this.loader = loader;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Gets a profile from the cache, loading it if it is missing or expired
+     * @param username the user
+     * @return the profile, or null if there is no such user
+     */
+    public Profile get(String username) {
+        Entry entry;
+        synchronized (cache) {
+            entry = cache.get(username);
+        }
+        if (entry != null && System.nanoTime() - entry.loadedAt < ttlNanos) {
+            hits.increment();
+            return entry.profile;
+        }
+        misses.increment();
+        CompletableFuture<Profile> created = new CompletableFuture<>();
+        CompletableFuture<Profile> running = loading.putIfAbsent(username, created);
+        if (running != null) {
+            return running.join(); //somebody else is loading it already
+        }
+        try {
+            long version = invalidations.get();
+            long start = System.nanoTime();
+            Profile profile = loader.load(username);
+            loads.increment();
+            loadNanos.add(System.nanoTime() - start);
+            synchronized (cache) {
+                if (profile == null) {
+                    cache.remove(username);
+                } else if (version == invalidations.get()) {
+                    cache.put(username, new Entry(profile, System.nanoTime()));
+                }
+            }
+            created.complete(profile);
+            return profile;
+        } catch (RuntimeException e) {
+            created.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(username, created);
+        }
+    }
+
+    /**
+     * Drops a profile, the next lookup loads it again
+     * @param username the user
+     */
+    public void invalidate(String username) {
+        synchronized (cache) {
+            invalidations.incrementAndGet();
+            cache.remove(username);
+        }
+    }
+
+    /**
+     * Drops every profile
+     */
+    public void invalidateAll() {
+        synchronized (cache) {
+            invalidations.incrementAndGet();
+            cache.clear();
+        }
+    }
+
+    /**
+     * @return profiles cached
+     */
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * @return lookups answered from memory
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return lookups that had to load the profile or wait for it
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return share of lookups answered from memory, 0 before the first lookup
+     */
+    public double getHitRatio() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * @return profiles loaded from the database
+     */
+    public long getLoadCount() {
+        return loads.sum();
+    }
+
+    /**
+     * @return average time to load a profile, in milliseconds
+     */
+    public double getAverageLoadMillis() {
+        long count = loads.sum();
+        return count == 0 ? 0 : loadNanos.sum() / 1_000_000.0 / count;
+    }
+}
@@ -25,6 +25,8 @@ public class ViewController {
     private final MainPage mainPage;
     private Client client;
     private static final Logger logger = Logger.getLogger(ViewController.class.getName());
+    private static final int CHAT_IMAGE_SIZE = 120; //images are sent and shown at this size
+    private JLabel profilePicLabel; //on the front page, the server may send the picture after the page is shown
 
     public ViewController(){
         mainPage = new MainPage(this);
@@ -34,7 +36,7 @@ public class ViewController {
      * Handles the logic that shows the front page when the user logs in / registers
      */
     public void showFrontPage(User user, boolean newUser){
-        JLabel profilePicLabel = new JLabel();
+        profilePicLabel = new JLabel();
 
         if(newUser) {
             String imagePath = user.getImagePath();
@@ -55,25 +57,45 @@ public class ViewController {
             }
         }
         else{
-            byte[] imageBytes = user.getImageByte();
-            if (imageBytes != null && imageBytes.length > 0) {
-                try {
-                    ByteArrayInputStream bis = new ByteArrayInputStream(imageBytes);
-                    BufferedImage img = ImageIO.read(bis);
-                    Image scaledImg = img.getScaledInstance(50, 50, Image.SCALE_SMOOTH);
-
-                    ImageIcon imageIcon = new ImageIcon(scaledImg);
-                    profilePicLabel.setIcon(imageIcon);
-                }
-                catch (IOException e) {
-                    logger.log(Level.SEVERE, "Something is wrong with the image!", e);
-                }
-            }
+            setProfilePicture(user.getImageByte());
         }
 
         mainPage.setUpFrontPage(mainPage.setUpProfilePanel(profilePicLabel));
     }
 
+    /**
+     * Shows a profile picture the server sent after the front page
+     * @param imageBytes the encoded image
+     */
+    public void showProfilePicture(byte[] imageBytes) {
+        SwingUtilities.invokeLater(() -> {
+            if (profilePicLabel != null) {
+                setProfilePicture(imageBytes);
+            }
+        });
+    }
+
+    /**
+     * Decodes the profile picture into the label on the front page
+     * @param imageBytes the encoded image, or null
+     */
+    private void setProfilePicture(byte[] imageBytes) {
+        if (imageBytes != null && imageBytes.length > 0) {
+            try {
+                ByteArrayInputStream bis = new ByteArrayInputStream(imageBytes);
+                BufferedImage img = ImageIO.read(bis);
+                //the server sends a thumbnail of the right size, older servers send the whole image
+                Image scaledImg = img.getWidth() == 50 && img.getHeight() == 50 ? img : img.getScaledInstance(50, 50, Image.SCALE_SMOOTH);
+
+                ImageIcon imageIcon = new ImageIcon(scaledImg);
+                profilePicLabel.setIcon(imageIcon);
+            }
+            catch (IOException e) {
+                logger.log(Level.SEVERE, "Something is wrong with the image!", e);
+            }
+        }
+    }
+
     /**
      * Creates a new Client if username and password are not null
      * @param username username
@@ -123,18 +145,52 @@ public class ViewController {
             File file = fileChooser.getSelectedFile();
             String filePath = file.getAbsolutePath();
 
-            //resize the selected image
-            ImageIcon imageIcon = new ImageIcon(filePath);
-            Image resizedImage = imageIcon.getImage().getScaledInstance(120, 120, Image.SCALE_SMOOTH);
-            imageIcon = new ImageIcon(resizedImage);
+            //resize the selected image, it is sent as a PNG thumbnail
+            try {
+                BufferedImage image = ImageIO.read(file);
+                if (image == null) {
+                    logger.log(Level.WARNING, "The selected file is not an image!");
+                    return;
+                }
+                byte[] thumbnail = ThumbnailService.encodeThumbnail(image, CHAT_IMAGE_SIZE);
 
-            //send the image with the current message
-            client.sendMessage(messageTextField.getText(), imageIcon, people, filePath);
+                //send the image with the current message
+                client.sendMessage(messageTextField.getText(), thumbnail, CHAT_IMAGE_SIZE, people, filePath);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Something is wrong with the image!", e);
+            }
         }
 
         messageTextField.requestFocusInWindow(); //refocus on input field
     }
 
+    /**
+     * Asks where to save the image of a message and downloads it there
+     * @param message the message with the image
+     */
+    public void saveAttachment(Message message) {
+        JFileChooser fileChooser = new JFileChooser();
+        if (message.getImagePath() != null) {
+            fileChooser.setSelectedFile(new File(new File(message.getImagePath()).getName())); //the name the sender's file had
+        }
+        if (fileChooser.showSaveDialog(null) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File file = fileChooser.getSelectedFile();
+        try {
+            client.downloadAttachment(message.getAttachment(), file.toPath()).whenComplete((path, e) -> SwingUtilities.invokeLater(() -> {
+                if (e != null) {
+                    logger.log(Level.WARNING, "Could not download the image!", e);
+                    JOptionPane.showMessageDialog(null, "The image could not be downloaded!", "Error", JOptionPane.ERROR_MESSAGE);
+                } else {
+                    JOptionPane.showMessageDialog(null, "Saved " + path.getFileName(), "Download", JOptionPane.INFORMATION_MESSAGE);
+                }
+            }));
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not resume the download!", e);
+        }
+    }
+
     /**
      * Closes the chat view
      * @param chatViewFrame ChatView frame
@@ -158,7 +214,7 @@ public class ViewController {
         new Thread(() -> {
             String message = messageTextField.getText();
             if (!message.isEmpty()) {
-                client.sendMessage(message, null, people, null);
+                client.sendMessage(message, null, 0, people, null);
                 messageTextField.setText(""); //clear the text field after sending
             }
             messageTextField.requestFocusInWindow(); //refocus on input field
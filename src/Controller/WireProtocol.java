@@ -0,0 +1,208 @@
+package Controller;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * Constants and helpers for the framed wire protocol
+ * A framed connection starts with a handshake (magic, version, codec id) sent by the client and echoed by the server,
+ * or answered with codec id 0 if the server does not know the codec,
+ * after that every command travels as a 4 byte length followed by the payload produced by the FrameCodec
+ * Clients that open an ObjectOutputStream straight away are detected by the stream header and served the old way
+ */
+public final class WireProtocol {
+    public static final byte[] MAGIC = {'J', 'M', 'S', 'G'};
+    public static final byte VERSION = 1;
+    public static final int HANDSHAKE_LENGTH = MAGIC.length + 2;
+    public static final int FRAME_HEADER_LENGTH = 4;
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    public static final byte REJECTED = 0;
+    public static final byte MAX_CODEC_ID = BinaryFrameCodec.ID; //highest id codecFor knows
+
+    //first two bytes of every ObjectOutputStream (STREAM_MAGIC)
+    private static final byte LEGACY_HEADER_0 = (byte) 0xAC;
+    private static final byte LEGACY_HEADER_1 = (byte) 0xED;
+
+    private static final FrameCodec objectCodec = new ObjectFrameCodec();
+    private static final FrameCodec binaryCodec = new BinaryFrameCodec();
+
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private WireProtocol() {
+
+    }
+
+    /**
+     * Checks if a connection starts with an ObjectOutputStream header instead of a handshake
+     * @param b0 first byte received
+     * @param b1 second byte received
+     * @return true if the client uses the old object stream protocol
+     */
+    public static boolean isLegacyHeader(byte b0, byte b1) {
+        return b0 == LEGACY_HEADER_0 && b1 == LEGACY_HEADER_1;
+    }
+
+    /**
+     * Looks up the codec a client asked for in the handshake
+     * @param id codec id
+     * @return the codec or null if the id is unknown
+     */
+    public static FrameCodec codecFor(byte id) {
+        return switch (id) {
+            case ObjectFrameCodec.ID -> objectCodec;
+            case BinaryFrameCodec.ID -> binaryCodec;
+            default -> null;
+        };
+    }
+
+    /**
+     * Builds the handshake for the given codec id
+     * @param codecId the codec id, or REJECTED
+     * @return the handshake bytes
+     */
+    public static byte[] handshake(byte codecId) {
+        byte[] handshake = Arrays.copyOf(MAGIC, HANDSHAKE_LENGTH);
+        handshake[MAGIC.length] = VERSION;
+        handshake[MAGIC.length + 1] = codecId;
+        return handshake;
+    }
+
+    /**
+     * Validates a received handshake and returns the codec it selects
+     * @param handshake the handshake bytes
+     * @return the codec, or null if the handshake is invalid or the codec is unknown
+     */
+    public static FrameCodec parseHandshake(byte[] handshake) {
+        if (handshake.length != HANDSHAKE_LENGTH
+                || !Arrays.equals(handshake, 0, MAGIC.length, MAGIC, 0, MAGIC.length)
+                || handshake[MAGIC.length] != VERSION) {
+            return null;
+        }
+        return codecFor(handshake[MAGIC.length + 1]);
+    }
+
+    /**
+     * Opens a client side framed connection and performs the handshake
+     * @param socket connected socket
+     * @param codec codec to request
+     * @return the connection
+     * @throws IOException if the server rejects the handshake
+     */
+    public static BlockingConnection connect(Socket socket, FrameCodec codec) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out.write(handshake(codec.id()));
+        out.flush();
+
+        byte[] reply = new byte[HANDSHAKE_LENGTH];
+        in.readFully(reply);
+        if (parseHandshake(reply) == null) {
+            socket.close();
+            throw new IOException("Server rejected the handshake!");
+        }
+        return new FramedStreamConnection(socket, in, out, codec);
+    }
+
+    /**
+     * Connects to a server, offering the codecs in order of preference
+     * A server that does not know a codec rejects the handshake and the next codec is tried on a new socket
+     * @param host server address
+     * @param port server port
+     * @param codecs codecs in order of preference
+     * @return the connection
+     * @throws IOException if the server cannot be reached or rejects every codec
+     */
+    public static BlockingConnection connect(String host, int port, FrameCodec... codecs) throws IOException {
+        IOException failure = new IOException("No codecs to offer!");
+        for (FrameCodec codec : codecs) {
+            Socket socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            try {
+                return connect(socket, codec);
+            } catch (IOException e) {
+                socket.close();
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Opens a server side connection for an accepted socket, detecting which protocol the client speaks
+     * The input is usually the socket's stream, but can also replay bytes the NIO transport already read
+     * @param socket accepted socket
+     * @param input stream with everything the client sent
+     * @param resetPolicy reset policy for object stream clients
+     * @return the connection
+     * @throws IOException if the client sends an invalid handshake
+     */
+    public static BlockingConnection accept(Socket socket, InputStream input, StreamResetPolicy resetPolicy) throws IOException {
+        BufferedInputStream bis = new BufferedInputStream(input);
+        bis.mark(2);
+        int b0 = bis.read();
+        int b1 = bis.read();
+        bis.reset();
+        if (b0 < 0 || b1 < 0) {
+            throw new IOException("Client closed the connection before sending anything!");
+        }
+        if (isLegacyHeader((byte) b0, (byte) b1)) {
+            return new LegacyStreamConnection(socket, bis, resetPolicy);
+        }
+
+        DataInputStream in = new DataInputStream(bis);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        byte[] handshake = new byte[HANDSHAKE_LENGTH];
+        in.readFully(handshake);
+        FrameCodec codec = parseHandshake(handshake);
+        if (codec == null) {
+            out.write(handshake(REJECTED));
+            out.flush();
+            throw new IOException("Client sent an invalid handshake!");
+        }
+        out.write(handshake(codec.id()));
+        out.flush();
+        return new FramedStreamConnection(socket, in, out, codec);
+    }
+
+    /**
+     * Opens a server side framed connection that only speaks one codec, for ports old clients have no business on
+     * Object stream headers and other codecs are rejected
+     * @param socket accepted socket
+     * @param codec the only codec accepted
+     * @return the connection
+     * @throws IOException if the peer sends anything but a handshake for the codec
+     */
+    public static BlockingConnection accept(Socket socket, FrameCodec codec) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        byte[] handshake = new byte[HANDSHAKE_LENGTH];
+        in.readFully(handshake);
+        FrameCodec requested = parseHandshake(handshake);
+        if (requested == null || requested.id() != codec.id()) {
+            out.write(handshake(REJECTED));
+            out.flush();
+            throw new IOException("Peer sent an invalid handshake!");
+        }
+        out.write(handshake(codec.id()));
+        out.flush();
+        return new FramedStreamConnection(socket, in, out, codec);
+    }
+
+    /**
+     * Checks a frame length read from the wire
+     * @param length the length
+     * @throws IOException if the length is negative or too large
+     */
+    public static void checkFrameLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+    }
+}
@@ -19,6 +19,36 @@ public enum Commands {
     SHOW_CONTACTS,
     REMOVE_ACTIVE_USER,
     SHOW_STORED_MESSAGES,
-    CLOSE_CHAT_VIEW
+    CLOSE_CHAT_VIEW,
+
+    PRESENCE_RESYNC_REQUEST,
+    PRESENCE_SNAPSHOT,
+    PRESENCE_DELTA,
+
+    STORED_MESSAGES_ACK,
+
+    UPLOAD_START_REQUEST,
+    UPLOAD_CHUNK,
+    DOWNLOAD_REQUEST,
+    UPLOAD_ACK,
+    UPLOAD_COMPLETE,
+    UPLOAD_FAILED,
+    DOWNLOAD_CHUNK,
+    DOWNLOAD_FAILED,
+
+    CONTACTS_SYNC_REQUEST,
+    REMOVE_FROM_CONTACTS_REQUEST,
+    CONTACTS_SYNC,
+    CONTACT_ADDED,
+    CONTACT_REMOVED,
+
+    PROFILE_IMAGE,
+
+    RETRY_LATER,
+
+    NODE_HELLO,
+    NODE_HEARTBEAT,
+    NODE_PRESENCE,
+    NODE_FORWARD
 
 }
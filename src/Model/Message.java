@@ -1,6 +1,15 @@
 package Model;
 
+import javax.imageio.ImageIO;
 import javax.swing.*;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.io.Serial;
 import java.io.Serializable;
 import java.util.Collections;
 import java.util.LinkedList;
@@ -9,15 +18,43 @@ import java.util.List;
 /**
  * Represents a chat message in the system
  * A message can include text, an image, or both
+ * The image travels as its encoded bytes and is only decoded when it is shown
+ * The full file of an image is uploaded separately and only referenced by its hash
+ * Serialized messages keep the shape they had before, with the image as an ImageIcon, so object stream clients
+ * built before the image bytes were added can still read them, the newer fields follow and old clients skip them
  */
 public class Message implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 1849857822283731262L; //the value before it was declared
+    @Serial
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("text", String.class),
+            new ObjectStreamField("image", ImageIcon.class),
+            new ObjectStreamField("sentBy", String.class),
+            new ObjectStreamField("recipientList", List.class),
+            new ObjectStreamField("sendTime", String.class),
+            new ObjectStreamField("imagePath", String.class),
+            new ObjectStreamField("imageData", byte[].class),
+            new ObjectStreamField("imageType", String.class),
+            new ObjectStreamField("imageWidth", int.class),
+            new ObjectStreamField("imageHeight", int.class),
+            new ObjectStreamField("attachment", String.class)
+    };
 
-    private final String text;
-    private final ImageIcon image;
-    private final String sentBy;
-    private final List<String> recipientList;
-    private final String sendTime;
-    private final String imagePath;
+    public static final String PNG = "image/png";
+
+    //written by writeObject in the shape of serialPersistentFields, not field by field
+    private transient String text;
+    private transient byte[] imageData;
+    private transient String imageType;
+    private transient int imageWidth;
+    private transient int imageHeight;
+    private transient ImageIcon image; //decoded on first use
+    private transient String sentBy;
+    private transient List<String> recipientList;
+    private transient String sendTime;
+    private transient String imagePath;
+    private transient String attachment;
 
     /**
      * Private constructor to enforce the use of the Builder
@@ -25,11 +62,15 @@ public class Message implements Serializable {
      */
     private Message(Builder builder) {
         this.text = builder.text;
-        this.image = builder.image;
+        this.imageData = builder.imageData;
+        this.imageType = builder.imageType;
+        this.imageWidth = builder.imageWidth;
+        this.imageHeight = builder.imageHeight;
         this.sentBy = builder.sentBy;
         this.recipientList = Collections.unmodifiableList(builder.recipientList);
         this.sendTime = builder.sendTime;
         this.imagePath = builder.imagePath;
+        this.attachment = builder.attachment;
     }
 
     /**
@@ -41,13 +82,48 @@ public class Message implements Serializable {
     }
 
     /**
-     * Gets the image associated with the message
-     * @return the image
+     * Gets the image associated with the message, decoding it the first time
+     * @return the image, or null if the message has none
      */
     public ImageIcon getImage() {
+        if (image == null && imageData != null) {
+            image = new ImageIcon(imageData);
+        }
         return image;
     }
 
+    /**
+     * Gets the encoded image associated with the message
+     * @return the encoded image, or null if the message has none
+     */
+    public byte[] getImageData() {
+        return imageData;
+    }
+
+    /**
+     * Gets the content type of the encoded image
+     * @return the content type, e.g. image/png
+     */
+    public String getImageType() {
+        return imageType;
+    }
+
+    /**
+     * Gets the width of the image
+     * @return the width in pixels
+     */
+    public int getImageWidth() {
+        return imageWidth;
+    }
+
+    /**
+     * Gets the height of the image
+     * @return the height in pixels
+     */
+    public int getImageHeight() {
+        return imageHeight;
+    }
+
     /**
      * Gets the sender of the message
      * @return the sender
@@ -80,16 +156,97 @@ public class Message implements Serializable {
         return imagePath;
     }
 
+    /**
+     * Gets the SHA-256 of the uploaded file attached to the message
+     * @return the hash, or null if no file was uploaded
+     */
+    public String getAttachment() {
+        return attachment;
+    }
+
+    /**
+     * Writes the message with the image also as an ImageIcon, the field old clients read
+     * @param out the stream
+     * @throws IOException if the message cannot be written
+     */
+    @Serial
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("text", text);
+        fields.put("image", getImage());
+        fields.put("sentBy", sentBy);
+        fields.put("recipientList", recipientList);
+        fields.put("sendTime", sendTime);
+        fields.put("imagePath", imagePath);
+        fields.put("imageData", imageData);
+        fields.put("imageType", imageType);
+        fields.put("imageWidth", imageWidth);
+        fields.put("imageHeight", imageHeight);
+        fields.put("attachment", attachment);
+        out.writeFields();
+    }
+
+    /**
+     * Reads a message written by this class or by an old client, whose image only comes as an ImageIcon
+     * @param in the stream
+     * @throws IOException if the message cannot be read
+     * @throws ClassNotFoundException if a field has an unknown class
+     */
+    @Serial
+    @SuppressWarnings("unchecked") //the list was written as a List<String>
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        text = (String) fields.get("text", null);
+        sentBy = (String) fields.get("sentBy", null);
+        List<String> recipients = (List<String>) fields.get("recipientList", null);
+        recipientList = recipients == null ? List.of() : Collections.unmodifiableList(new LinkedList<>(recipients));
+        sendTime = (String) fields.get("sendTime", null);
+        imagePath = (String) fields.get("imagePath", null);
+        attachment = (String) fields.get("attachment", null);
+        imageData = (byte[]) fields.get("imageData", null);
+        imageType = (String) fields.get("imageType", null);
+        imageWidth = fields.get("imageWidth", 0);
+        imageHeight = fields.get("imageHeight", 0);
+        ImageIcon oldImage = (ImageIcon) fields.get("image", null);
+        if (imageData == null && oldImage != null && oldImage.getIconWidth() > 0) {
+            image = oldImage;
+            imageData = toPng(oldImage);
+            imageType = PNG;
+            imageWidth = oldImage.getIconWidth();
+            imageHeight = oldImage.getIconHeight();
+        }
+    }
+
+    /**
+     * Encodes an image received from an old client
+     * @param icon the image
+     * @return the image as PNG
+     * @throws IOException if it cannot be encoded
+     */
+    private static byte[] toPng(ImageIcon icon) throws IOException {
+        BufferedImage image = new BufferedImage(icon.getIconWidth(), icon.getIconHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.drawImage(icon.getImage(), 0, 0, null);
+        graphics.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
     /**
      * Builder class for constructing a Message object
      */
     public static class Builder {
         private String text;
-        private ImageIcon image;
+        private byte[] imageData;
+        private String imageType;
+        private int imageWidth;
+        private int imageHeight;
         private String sentBy;
         private final LinkedList<String> recipientList = new LinkedList<>();
         private String sendTime;
         private String imagePath;
+        private String attachment;
 
         /**
          * Sets the text content of the message
@@ -103,11 +260,17 @@ public class Message implements Serializable {
 
         /**
          * Sets the image associated with the message
-         * @param image the image
+         * @param imageData the encoded image
+         * @param imageType the content type, e.g. image/png
+         * @param imageWidth the width in pixels
+         * @param imageHeight the height in pixels
          * @return the Builder instance
          */
-        public Builder withImage(ImageIcon image) {
-            this.image = image;
+        public Builder withImage(byte[] imageData, String imageType, int imageWidth, int imageHeight) {
+            this.imageData = imageData;
+            this.imageType = imageType;
+            this.imageWidth = imageWidth;
+            this.imageHeight = imageHeight;
             return this;
         }
 
@@ -151,6 +314,16 @@ public class Message implements Serializable {
             return this;
         }
 
+        /**
+         * Sets the uploaded file attached to the message
+         * @param attachment the SHA-256 of the file
+         * @return the Builder instance
+         */
+        public Builder withAttachment(String attachment) {
+            this.attachment = attachment;
+            return this;
+        }
+
         /**
          * Builds and returns the Message instance
          * @return a new Message instance
@@ -5,6 +5,7 @@ import java.io.Serializable;
  * Represents a User in the system
  */
 public class User implements Serializable {
+    private static final long serialVersionUID = 2999774307495848974L; //the value before it was declared, old object stream clients still read users
     private final String username; //unique identifier for the user
     private String firstName;
     private String lastName;
@@ -33,6 +34,15 @@ public class User implements Serializable {
         this.imagePath = imagePath;
     }
 
+    public User(String username, String password, String firstName, String lastName, String imagePath, byte[] imageByte){
+        this.username = username;
+        this.password = password;
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.imagePath = imagePath;
+        this.imageByte = imageByte;
+    }
+
     // Getters and setters for each field
     public String getUsername() {
         return username;
@@ -1,9 +1,12 @@
 package View;
 
 import Controller.ViewController;
+import Model.Message;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.util.ArrayList;
 import java.util.LinkedList;
 
@@ -58,6 +61,15 @@ public class ChatView {
         chatField.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         chatField.setBackground(new Color(245, 245, 245));
         chatField.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10)); //padding around messages
+        //double-clicking a message with an uploaded image saves the whole image
+        chatField.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2 && chatField.getSelectedValue() instanceof Message message && message.getAttachment() != null) {
+                    viewController.saveAttachment(message);
+                }
+            }
+        });
     }
 
     //creates and sets up the main panel with chat and input components
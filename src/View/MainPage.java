@@ -24,6 +24,7 @@ public class MainPage implements Serializable {
     private final ArrayList<Object> contacts = new ArrayList<>();
     private JButton startChattingButton;
     private JButton addToContactsButton;
+    private JButton removeContactButton;
     private JFrame frontPageFrame;
 
     /**
@@ -93,6 +94,7 @@ public class MainPage implements Serializable {
     private JPanel buildButtonPanel() {
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 10, 10));
         buttonPanel.add(addToContactsButton);
+        buttonPanel.add(removeContactButton);
         buttonPanel.add(startChattingButton);
         return buttonPanel;
     }
@@ -137,6 +139,7 @@ public class MainPage implements Serializable {
     private void createButtons(){
         startChattingButton = new JButton("Chat"); //add chat-button
         addToContactsButton = new JButton("Add to contacts"); //add contact-button
+        removeContactButton = new JButton("Remove contact"); //remove contact-button
     }
 
     /**
@@ -150,6 +153,13 @@ public class MainPage implements Serializable {
             }
         });
 
+        removeContactButton.addActionListener(e -> {
+            if (!contactList.isSelectionEmpty()) { //removes the selected saved contacts
+                viewController.getClient().removeFromContacts(contactList.getSelectedValuesList());
+                clearSelections(); //clear selected
+            }
+        });
+
         startChattingButton.addActionListener(e -> {
             if (!activeUsersList.isSelectionEmpty()) { //start a chat with the selected active user
                 viewController.getClient().initiateChat(activeUsersList.getSelectedValues());